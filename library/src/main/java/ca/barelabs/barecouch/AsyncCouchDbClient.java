@@ -0,0 +1,212 @@
+package ca.barelabs.barecouch;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.barelabs.bareconnection.IOUtils;
+import ca.barelabs.barecouch.responses.DocumentResponse;
+
+/**
+ * Runs {@link CouchDbClient} operations on an executor and returns a {@link CouchFuture} for each.
+ * When no executor is provided a virtual thread per task executor is used if the running JVM offers one,
+ * otherwise a cached pool of daemon threads. Streaming results handed to a cancelled future are closed.
+ */
+public class AsyncCouchDbClient implements Closeable {
+
+    private static final String VIRTUAL_THREAD_EXECUTOR_METHOD = "newVirtualThreadPerTaskExecutor";
+    private static final String THREAD_NAME_PREFIX = "barecouch-async-";
+
+    private final CouchDbClient mClient;
+    private final ExecutorService mExecutor;
+    private final boolean mOwnsExecutor;
+
+
+    public AsyncCouchDbClient(CouchDbClient client) {
+        this(client, newDefaultExecutor(), true);
+    }
+
+    public AsyncCouchDbClient(CouchDbClient client, ExecutorService executor) {
+        this(client, executor, false);
+    }
+
+    private AsyncCouchDbClient(CouchDbClient client, ExecutorService executor, boolean ownsExecutor) {
+        if (client == null || executor == null) {
+            throw new IllegalArgumentException("A client and executor must be provided.");
+        }
+        mClient = client;
+        mExecutor = executor;
+        mOwnsExecutor = ownsExecutor;
+    }
+
+    public CouchDbClient getClient() {
+        return mClient;
+    }
+
+    public ExecutorService getExecutor() {
+        return mExecutor;
+    }
+
+    public CouchFuture<Boolean> contains(final String database, final String docId) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return mClient.contains(database, docId);
+            }
+        });
+    }
+
+    public <D> CouchFuture<D> get(final String database, final String docId, final Class<D> documentClss) {
+        return submit(new Callable<D>() {
+            @Override
+            public D call() throws Exception {
+                return mClient.get(database, docId, documentClss);
+            }
+        });
+    }
+
+    public <D> CouchFuture<D> find(final String database, final String docId, final Class<D> documentClss) {
+        return submit(new Callable<D>() {
+            @Override
+            public D call() throws Exception {
+                return mClient.find(database, docId, documentClss);
+            }
+        });
+    }
+
+    public CouchFuture<DocumentResponse> create(String database, Object document) {
+        return create(database, document, DocumentResponse.class);
+    }
+
+    public <D> CouchFuture<D> create(final String database, final Object document, final Class<D> responseClss) {
+        return submit(new Callable<D>() {
+            @Override
+            public D call() throws Exception {
+                return mClient.create(database, document, responseClss);
+            }
+        });
+    }
+
+    public CouchFuture<DocumentResponse> update(String database, Object document) {
+        return update(database, document, DocumentResponse.class);
+    }
+
+    public <D> CouchFuture<D> update(final String database, final Object document, final Class<D> responseClss) {
+        return submit(new Callable<D>() {
+            @Override
+            public D call() throws Exception {
+                return mClient.update(database, document, responseClss);
+            }
+        });
+    }
+
+    public CouchFuture<DocumentResponse> delete(String database, Object document) {
+        return delete(database, document, DocumentResponse.class);
+    }
+
+    public <D> CouchFuture<D> delete(final String database, final Object document, final Class<D> responseClss) {
+        return submit(new Callable<D>() {
+            @Override
+            public D call() throws Exception {
+                return mClient.delete(database, document, responseClss);
+            }
+        });
+    }
+
+    public CouchFuture<BulkResult> bulkUpdate(final String database, final Object request) {
+        return submit(new Callable<BulkResult>() {
+            @Override
+            public BulkResult call() throws Exception {
+                return mClient.bulkUpdate(database, request);
+            }
+        });
+    }
+
+    public CouchFuture<ViewResult> queryView(final String database, final ViewQuery query) {
+        return submit(new Callable<ViewResult>() {
+            @Override
+            public ViewResult call() throws Exception {
+                return mClient.queryView(database, query);
+            }
+        });
+    }
+
+    public CouchFuture<StreamingViewResult> queryForStreamingView(final String database, final ViewQuery query) {
+        return submit(new Callable<StreamingViewResult>() {
+            @Override
+            public StreamingViewResult call() throws Exception {
+                return mClient.queryForStreamingView(database, query);
+            }
+        });
+    }
+
+    public CouchFuture<ChangesResult> queryChanges(final String database, final ChangesQuery query) {
+        return submit(new Callable<ChangesResult>() {
+            @Override
+            public ChangesResult call() throws Exception {
+                return mClient.queryChanges(database, query);
+            }
+        });
+    }
+
+    public CouchFuture<StreamingChangesResult> queryForStreamingChanges(final String database, final ChangesQuery query) {
+        return submit(new Callable<StreamingChangesResult>() {
+            @Override
+            public StreamingChangesResult call() throws Exception {
+                return mClient.queryForStreamingChanges(database, query);
+            }
+        });
+    }
+
+    public <V> CouchFuture<V> submit(final Callable<V> callable) {
+        final CouchFuture<V> future = new CouchFuture<>();
+        future.setTask(mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    V result = callable.call();
+                    if (!future.complete(result) && result instanceof Closeable) {
+                        // Nobody is left to read the stream so release the connection
+                        IOUtils.closeQuietly((Closeable) result);
+                    }
+                } catch (Throwable t) {
+                    future.fail(t);
+                }
+            }
+        }));
+        return future;
+    }
+
+    @Override
+    public void close() {
+        if (mOwnsExecutor) {
+            mExecutor.shutdown();
+        }
+    }
+
+    private static ExecutorService newDefaultExecutor() {
+        try {
+            Method method = Executors.class.getMethod(VIRTUAL_THREAD_EXECUTOR_METHOD);
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            // Virtual threads aren't available on this JVM
+        }
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
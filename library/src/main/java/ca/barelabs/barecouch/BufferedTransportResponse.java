@@ -0,0 +1,111 @@
+package ca.barelabs.barecouch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+
+import ca.barelabs.bareconnection.ObjectParser;
+
+/**
+ * A {@link TransportResponse} whose body was read fully into memory. Each {@link #copy()} reads from the start
+ * of the body again so a response can be handed to several callers who each parse their own objects from it.
+ */
+public class BufferedTransportResponse implements TransportResponse {
+
+    private final TransportResponse mSource;
+    private final byte[] mBody;
+    private final InputStream mContent;
+
+
+    private BufferedTransportResponse(TransportResponse source, byte[] body) {
+        mSource = source;
+        mBody = body;
+        mContent = new ByteArrayInputStream(body);
+    }
+
+    /**
+     * Reads the whole body of the response and releases its connection.
+     */
+    public static BufferedTransportResponse buffer(TransportResponse response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            InputStream in = response.getContent();
+            byte[] buffer = new byte[8192];
+            int read;
+            while (in != null && (read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            response.close();
+        }
+        return new BufferedTransportResponse(response, out.toByteArray());
+    }
+
+    public BufferedTransportResponse copy() {
+        return new BufferedTransportResponse(mSource, mBody);
+    }
+
+    public int getBodyLength() {
+        return mBody.length;
+    }
+
+    @Override
+    public int getStatusCode() {
+        return mSource.getStatusCode();
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        return mSource.getHeaderField(name);
+    }
+
+    @Override
+    public String getContentType() {
+        return mSource.getContentType();
+    }
+
+    @Override
+    public int getContentLength() {
+        return mBody.length;
+    }
+
+    @Override
+    public String getIncomingCharset() {
+        return mSource.getIncomingCharset();
+    }
+
+    @Override
+    public ObjectParser getParser() {
+        return mSource.getParser();
+    }
+
+    @Override
+    public InputStream getContent() {
+        return mContent;
+    }
+
+    @Override
+    public String parse() throws IOException {
+        return new String(mBody, getIncomingCharset());
+    }
+
+    @Override
+    public <T> T parseAs(Class<T> clss) throws IOException {
+        return getParser().parse(parse(), clss);
+    }
+
+    @Override
+    public <T> T parseAs(Type type) throws IOException {
+        return getParser().parse(parse(), type);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void disconnect() {
+    }
+}
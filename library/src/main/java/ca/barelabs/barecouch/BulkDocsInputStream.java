@@ -0,0 +1,80 @@
+package ca.barelabs.barecouch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import ca.barelabs.bareconnection.ObjectParser;
+import ca.barelabs.bareconnection.RestConnection;
+
+/**
+ * Produces a _bulk_docs request body, {"docs":[...]}, by serializing documents from an iterator only as the
+ * transport reads them, so no more than one document is held in memory however many are sent.
+ */
+public class BulkDocsInputStream extends InputStream {
+
+    private static final byte[] PREFIX = "{\"docs\":[".getBytes();
+    private static final byte[] SUFFIX = "]}".getBytes();
+
+    private final Iterator<?> mDocuments;
+    private final ObjectParser mParser;
+    private byte[] mChunk = PREFIX;
+    private int mPosition;
+    private boolean mFirst = true;
+    private boolean mEnded;
+    private int mDocumentCount;
+
+
+    public BulkDocsInputStream(Iterator<?> documents, ObjectParser parser) {
+        mDocuments = documents;
+        mParser = parser;
+    }
+
+    /**
+     * The number of documents serialized so far.
+     */
+    public int getDocumentCount() {
+        return mDocumentCount;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int total = 0;
+        while (total < len) {
+            if (mPosition == mChunk.length && !nextChunk()) {
+                break;
+            }
+            int count = Math.min(len - total, mChunk.length - mPosition);
+            System.arraycopy(mChunk, mPosition, b, off + total, count);
+            mPosition += count;
+            total += count;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (mEnded) {
+            return false;
+        }
+        if (mDocuments.hasNext()) {
+            String json = mParser.toJson(mDocuments.next());
+            mChunk = ((mFirst ? "" : ",") + json).getBytes(RestConnection.DEFAULT_CHARSET);
+            mFirst = false;
+            mDocumentCount++;
+        } else {
+            mChunk = SUFFIX;
+            mEnded = true;
+        }
+        mPosition = 0;
+        return true;
+    }
+}
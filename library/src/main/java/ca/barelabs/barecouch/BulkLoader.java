@@ -0,0 +1,429 @@
+package ca.barelabs.barecouch;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.barelabs.barecouch.BulkResult.DocumentResult;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Loads an arbitrarily large source of documents into a database through bulk updates. Documents are read into
+ * chunks which are uploaded by a bounded number of threads, reading ahead no more than a few chunks so memory
+ * stays bounded. Failed requests are retried with back off, and documents rejected with one of the
+ * {@link #TRANSIENT_ERRORS} are resent straight away; only those documents are resent. Documents without an id are
+ * given one from the server before they are first sent, so resending a chunk after a lost response can't save
+ * them twice. Conflicts on a resent chunk are checked against the database, and a document whose current revision is
+ * the one the lost request would have written is counted as saved.
+ */
+public class BulkLoader {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long RETRY_DELAY_MILLIS = 200;
+    public static final int MAX_DELAY_SHIFT = 20;
+    public static final int MAX_UUIDS_PER_REQUEST = 1000;
+    public static final String ERROR_CONFLICT = "conflict";
+    public static final Set<String> TRANSIENT_ERRORS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+        "timeout", "unknown_error", "internal_server_error", "service_unavailable")));
+
+    private final CouchDbClient mClient;
+    private final String mDatabase;
+    private final int mChunkSize;
+    private final int mParallelism;
+    private final int mMaxRetries;
+    private Listener mListener;
+
+
+    public BulkLoader(CouchDbClient client, String database) {
+        this(client, database, DEFAULT_CHUNK_SIZE, DEFAULT_PARALLELISM, DEFAULT_MAX_RETRIES);
+    }
+
+    public BulkLoader(CouchDbClient client, String database, int chunkSize, int parallelism, int maxRetries) {
+        if (chunkSize <= 0 || parallelism <= 0 || maxRetries < 0) {
+            throw new IllegalArgumentException("Chunk size and parallelism must be positive and retries can't be negative.");
+        }
+        mClient = client;
+        mDatabase = database;
+        mChunkSize = chunkSize;
+        mParallelism = parallelism;
+        mMaxRetries = maxRetries;
+    }
+
+    public Listener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Notified from the upload threads as each chunk completes.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Uploads every document and waits for all chunks to complete. The id and revision of every saved document
+     * are written back with {@link DocumentUtils}.
+     */
+    public Result load(Iterator<?> documents) throws IOException {
+        final Result result = new Result();
+        final Semaphore chunksAhead = new Semaphore(mParallelism * 2);
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(mParallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "barecouch-bulk-loader-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long start = System.nanoTime();
+        try {
+            int index = 0;
+            while (documents.hasNext()) {
+                final List<Object> chunk = new ArrayList<>(mChunkSize);
+                while (chunk.size() < mChunkSize && documents.hasNext()) {
+                    chunk.add(documents.next());
+                }
+                final int chunkIndex = index++;
+                chunksAhead.acquire();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            ChunkStats stats = uploadChunk(chunkIndex, chunk, result);
+                            result.add(stats);
+                            Listener listener = mListener;
+                            if (listener != null) {
+                                listener.onChunkComplete(stats);
+                            }
+                        } finally {
+                            chunksAhead.release();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading documents.");
+        } finally {
+            executor.shutdownNow();
+        }
+        result.mElapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Returns true when a document rejected by the server may be saved if sent again.
+     */
+    protected boolean isTransient(DocumentResult documentResult) {
+        return TRANSIENT_ERRORS.contains(documentResult.getError());
+    }
+
+    /**
+     * Returns true when a failed bulk request may succeed if sent again.
+     */
+    protected boolean isTransient(IOException e) {
+        if (!(e instanceof TransportException)) {
+            return true;
+        }
+        int statusCode = ((TransportException) e).getStatusCode();
+        return statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR || statusCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT || statusCode == 429;
+    }
+
+    private ChunkStats uploadChunk(int chunkIndex, List<Object> chunk, Result result) {
+        ChunkStats stats = new ChunkStats(chunkIndex, chunk.size());
+        long start = System.nanoTime();
+        List<Object> pending = chunk;
+        boolean idsAssigned = false;
+        boolean requestLost = false;
+        int failedRequests = 0;
+        for (int attempt = 0; !pending.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                stats.mRetries++;
+            }
+            // Only a failed request backs off, documents the server rejected are resent straight away
+            if (failedRequests > 0 && !sleep(RETRY_DELAY_MILLIS << Math.min(failedRequests - 1, MAX_DELAY_SHIFT))) {
+                result.addFailures(pending, "interrupted", null);
+                stats.mFailed += pending.size();
+                break;
+            }
+            boolean lastAttempt = attempt >= mMaxRetries;
+            List<DocumentResult> results;
+            try {
+                if (!idsAssigned) {
+                    assignIds(pending);
+                    idsAssigned = true;
+                }
+                results = mClient.bulkUpdate(mDatabase, pending).getResults();
+                failedRequests = 0;
+            } catch (IOException e) {
+                if (lastAttempt || !isTransient(e)) {
+                    result.addFailures(pending, "request_failed", e.toString());
+                    stats.mFailed += pending.size();
+                    break;
+                }
+                failedRequests++;
+                // The server may have saved the documents before the request failed
+                requestLost = true;
+                continue;
+            } catch (RuntimeException e) {
+                result.addFailures(pending, "request_failed", e.toString());
+                stats.mFailed += pending.size();
+                break;
+            }
+            List<Object> retry = new ArrayList<>();
+            List<Object> conflicts = new ArrayList<>();
+            List<DocumentResult> conflictResults = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                Object document = pending.get(i);
+                DocumentResult documentResult = results != null && i < results.size() ? results.get(i) : null;
+                if (documentResult != null && documentResult.getError() == null) {
+                    DocumentUtils.setId(document, documentResult.getId());
+                    DocumentUtils.setRev(document, documentResult.getRev());
+                    stats.mSucceeded++;
+                } else if (documentResult != null && requestLost && ERROR_CONFLICT.equals(documentResult.getError())
+                        && DocumentUtils.getId(document) != null) {
+                    conflicts.add(document);
+                    conflictResults.add(documentResult);
+                } else if (documentResult != null && (lastAttempt || !isTransient(documentResult))) {
+                    result.addFailure(documentResult);
+                    stats.mFailed++;
+                } else if (documentResult == null && lastAttempt) {
+                    result.addFailures(Collections.singletonList(document), "missing_result", null);
+                    stats.mFailed++;
+                } else {
+                    retry.add(document);
+                }
+            }
+            if (!conflicts.isEmpty()) {
+                resolveConflicts(conflicts, conflictResults, result, stats);
+            }
+            pending = retry;
+        }
+        stats.mElapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return stats;
+    }
+
+    /**
+     * Looks up the current revisions of documents that conflicted after a request was lost, with one _all_docs
+     * request. A document whose revision is one generation past the one it was sent with was saved by the lost
+     * request, so it's given that revision and counted as saved. The rest are recorded as conflicts.
+     */
+    private void resolveConflicts(List<Object> documents, List<DocumentResult> documentResults, Result result, ChunkStats stats) {
+        List<String> ids = new ArrayList<>();
+        for (Object document : documents) {
+            ids.add(DocumentUtils.getId(document));
+        }
+        Map<String, String> revs = new HashMap<>();
+        try {
+            for (ViewResult.Row row : mClient.queryView(mDatabase, new ViewQuery().allDocs(true), ids)) {
+                JsonElement id = row.getIdAsJsonElement();
+                JsonElement value = row.getValueAsJsonElement();
+                if (id != null && id.isJsonPrimitive() && value != null && value.isJsonObject()
+                        && value.getAsJsonObject().has(StreamingBulkResult.FIELD_REV)) {
+                    revs.put(id.getAsString(), value.getAsJsonObject().get(StreamingBulkResult.FIELD_REV).getAsString());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Without the current revisions the conflicts stand
+        }
+        for (int i = 0; i < documents.size(); i++) {
+            Object document = documents.get(i);
+            String rev = revs.get(ids.get(i));
+            if (rev != null && getGeneration(rev) == getGeneration(DocumentUtils.getRev(document)) + 1) {
+                DocumentUtils.setRev(document, rev);
+                stats.mSucceeded++;
+            } else {
+                result.addFailure(documentResults.get(i));
+                stats.mFailed++;
+            }
+        }
+    }
+
+    /**
+     * The number before the dash of a revision, or 0 for a document that hasn't been saved.
+     */
+    private static long getGeneration(String rev) {
+        if (rev == null) {
+            return 0;
+        }
+        int dash = rev.indexOf('-');
+        try {
+            return Long.parseLong(dash == -1 ? rev : rev.substring(0, dash));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Gives documents without an id one from the server, so a chunk sent again after its response was lost updates
+     * the same documents instead of creating copies. Documents whose id can't be set are sent as they are.
+     */
+    private void assignIds(List<Object> documents) throws IOException {
+        List<Object> missing = new ArrayList<>();
+        for (Object document : documents) {
+            if (DocumentUtils.getId(document) == null) {
+                missing.add(document);
+            }
+        }
+        for (int from = 0; from < missing.size(); from += MAX_UUIDS_PER_REQUEST) {
+            List<Object> batch = missing.subList(from, Math.min(missing.size(), from + MAX_UUIDS_PER_REQUEST));
+            List<String> uuids = mClient.getUuidList(batch.size()).getUuids();
+            if (uuids == null || uuids.size() < batch.size()) {
+                throw new IOException("The server returned too few uuids.");
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                DocumentUtils.setId(batch.get(i), uuids.get(i));
+            }
+        }
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+
+    public interface Listener {
+
+        void onChunkComplete(ChunkStats stats);
+    }
+
+
+    public static class ChunkStats {
+
+        private final int mIndex;
+        private final int mDocumentCount;
+        private int mSucceeded;
+        private int mFailed;
+        private int mRetries;
+        private long mElapsedMillis;
+
+
+        ChunkStats(int index, int documentCount) {
+            mIndex = index;
+            mDocumentCount = documentCount;
+        }
+
+        public int getIndex() {
+            return mIndex;
+        }
+
+        public int getDocumentCount() {
+            return mDocumentCount;
+        }
+
+        public int getSucceeded() {
+            return mSucceeded;
+        }
+
+        public int getFailed() {
+            return mFailed;
+        }
+
+        public int getRetries() {
+            return mRetries;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        public double getDocumentsPerSecond() {
+            return mElapsedMillis == 0 ? mDocumentCount * 1000.0 : mDocumentCount * 1000.0 / mElapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "chunk " + mIndex + ": " + mSucceeded + "/" + mDocumentCount + " saved, " + mFailed + " failed, "
+                + mRetries + " retries in " + mElapsedMillis + "ms";
+        }
+    }
+
+
+    public static class Result {
+
+        private final List<ChunkStats> mChunks = new ArrayList<>();
+        private final List<DocumentResult> mFailures = new ArrayList<>();
+        private long mElapsedMillis;
+
+
+        public synchronized List<ChunkStats> getChunks() {
+            return new ArrayList<>(mChunks);
+        }
+
+        /**
+         * The results of documents that couldn't be saved, in no particular order.
+         */
+        public synchronized List<DocumentResult> getFailures() {
+            return new ArrayList<>(mFailures);
+        }
+
+        public synchronized long getSucceeded() {
+            long succeeded = 0;
+            for (ChunkStats chunk : mChunks) {
+                succeeded += chunk.mSucceeded;
+            }
+            return succeeded;
+        }
+
+        public synchronized long getFailed() {
+            return mFailures.size();
+        }
+
+        public synchronized long getRetries() {
+            long retries = 0;
+            for (ChunkStats chunk : mChunks) {
+                retries += chunk.mRetries;
+            }
+            return retries;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        synchronized void add(ChunkStats stats) {
+            mChunks.add(stats);
+        }
+
+        synchronized void addFailure(DocumentResult failure) {
+            mFailures.add(failure);
+        }
+
+        synchronized void addFailures(List<Object> documents, String error, String reason) {
+            for (Object document : documents) {
+                DocumentResult failure = new DocumentResult();
+                failure.setId(DocumentUtils.getId(document));
+                failure.setError(error);
+                failure.setReason(reason);
+                mFailures.add(failure);
+            }
+        }
+    }
+}
@@ -5,7 +5,6 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
-import ca.barelabs.bareconnection.RestResponse;
 import com.google.gson.reflect.TypeToken;
 
 public class BulkResult implements Iterable<BulkResult.DocumentResult> {
@@ -13,7 +12,7 @@ public class BulkResult implements Iterable<BulkResult.DocumentResult> {
     private List<DocumentResult> mResults = new ArrayList<>();
     
 
-    public BulkResult(RestResponse response) throws IOException {
+    public BulkResult(TransportResponse response) throws IOException {
     	mResults = response.parseAs(new TypeToken<List<DocumentResult>>(){}.getType());
     }
     
@@ -0,0 +1,276 @@
+package ca.barelabs.barecouch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ca.barelabs.bareconnection.ObjectParser;
+import ca.barelabs.barecouch.BulkResult.DocumentResult;
+
+/**
+ * Batches documents written one at a time into _bulk_docs requests. A batch is sent once it holds enough
+ * documents or bytes, or once its first document has waited for the linger time. Batches are sent one at a
+ * time and in order, so later writes of a document never overtake earlier ones, and writers block once too
+ * many batches are waiting to be sent.
+ * <p>
+ * Each write's future completes with the document's {@link DocumentResult}, and the id and revision are
+ * written back into documents that were saved. A document rejected by the server, for example with a
+ * conflict, still completes normally with the error in its result; the future only fails when the batch
+ * couldn't be sent.
+ */
+public class BulkWriter implements Closeable {
+
+    public static final int DEFAULT_MAX_DOCUMENTS = 500;
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+    public static final long DEFAULT_LINGER_MILLIS = 50;
+    public static final int DEFAULT_MAX_PENDING_BATCHES = 4;
+
+    private final CouchDbClient mClient;
+    private final String mDatabase;
+    private final int mMaxDocuments;
+    private final long mMaxBytes;
+    private final long mLingerMillis;
+    private final ObjectParser mParser;
+    private final Semaphore mPendingBatches;
+    private final ScheduledExecutorService mTimer;
+    private final ExecutorService mSender;
+    private final Runnable mLingerTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private List<PendingWrite> mBatch = new ArrayList<>();
+    private long mBatchBytes;
+    private ScheduledFuture<?> mLinger;
+    private int mSubmitting;
+    private boolean mClosed;
+
+
+    public BulkWriter(CouchDbClient client, String database) {
+        this(client, database, DEFAULT_MAX_DOCUMENTS, DEFAULT_MAX_BYTES, DEFAULT_LINGER_MILLIS);
+    }
+
+    public BulkWriter(CouchDbClient client, String database, int maxDocuments, long maxBytes, long lingerMillis) {
+        this(client, database, maxDocuments, maxBytes, lingerMillis, client.getParserOrDefault());
+    }
+
+    public BulkWriter(CouchDbClient client, String database, int maxDocuments, long maxBytes, long lingerMillis, ObjectParser parser) {
+        if (maxDocuments <= 0 || maxBytes <= 0 || lingerMillis < 0) {
+            throw new IllegalArgumentException("Maximum documents and bytes must be positive and linger time can't be negative.");
+        }
+        mClient = client;
+        mDatabase = database;
+        mMaxDocuments = maxDocuments;
+        mMaxBytes = maxBytes;
+        mLingerMillis = lingerMillis;
+        mParser = parser;
+        mPendingBatches = new Semaphore(DEFAULT_MAX_PENDING_BATCHES);
+        mTimer = Executors.newSingleThreadScheduledExecutor(newThreadFactory("barecouch-bulk-linger-" + database));
+        mSender = Executors.newSingleThreadExecutor(newThreadFactory("barecouch-bulk-sender-" + database));
+    }
+
+    public String getDatabase() {
+        return mDatabase;
+    }
+
+    public CouchFuture<DocumentResult> write(Object document) {
+        // Serialize up front so the batch size is known and the document can't change while it waits
+        String json = mParser.toJson(document);
+        long bytes = utf8Length(json);
+        PendingWrite write = new PendingWrite(document, json);
+        List<PendingWrite> full = null;
+        List<PendingWrite> overflow = null;
+        synchronized (this) {
+            if (mClosed) {
+                throw new IllegalStateException("Bulk writer was closed.");
+            }
+            if (!mBatch.isEmpty() && mBatchBytes + bytes > mMaxBytes) {
+                overflow = takeBatch();
+            }
+            mBatch.add(write);
+            mBatchBytes += bytes;
+            if (mBatch.size() >= mMaxDocuments || mBatchBytes >= mMaxBytes) {
+                full = takeBatch();
+            } else if (mLinger == null) {
+                mLinger = mTimer.schedule(mLingerTask, mLingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        // Waiting for a pending batch slot happens outside the lock so flushes and other writers aren't blocked
+        submit(overflow);
+        submit(full);
+        return write.mFuture;
+    }
+
+    /**
+     * Sends the current batch without waiting for it to fill up.
+     */
+    public void flush() {
+        List<PendingWrite> batch;
+        synchronized (this) {
+            batch = takeBatch();
+        }
+        submit(batch);
+    }
+
+    /**
+     * Sends the current batch and waits for every batch to be sent.
+     */
+    @Override
+    public void close() throws IOException {
+        List<PendingWrite> batch;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            batch = takeBatch();
+            mClosed = true;
+        }
+        submit(batch);
+        mTimer.shutdownNow();
+        try {
+            synchronized (this) {
+                // Batches taken by other threads before closing must reach the sender before it shuts down
+                while (mSubmitting > 0) {
+                    wait();
+                }
+            }
+            mSender.shutdown();
+            mSender.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bulk writes to be sent.");
+        }
+    }
+
+    /**
+     * Swaps out the current batch, returning null when it is empty. Must be called holding the lock, and a batch
+     * that is returned must be passed to {@link #submit(List)}.
+     */
+    private List<PendingWrite> takeBatch() {
+        if (mLinger != null) {
+            mLinger.cancel(false);
+            mLinger = null;
+        }
+        if (mBatch.isEmpty()) {
+            return null;
+        }
+        List<PendingWrite> batch = mBatch;
+        mBatch = new ArrayList<>();
+        mBatchBytes = 0;
+        mSubmitting++;
+        return batch;
+    }
+
+    /**
+     * Waits for a pending batch slot and hands the batch to the sender. Must be called without holding the lock.
+     */
+    private void submit(final List<PendingWrite> batch) {
+        if (batch == null) {
+            return;
+        }
+        try {
+            mPendingBatches.acquireUninterruptibly();
+            mSender.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        send(batch);
+                    } finally {
+                        mPendingBatches.release();
+                    }
+                }
+            });
+        } finally {
+            synchronized (this) {
+                mSubmitting--;
+                notifyAll();
+            }
+        }
+    }
+
+    private void send(List<PendingWrite> batch) {
+        StringBuilder body = new StringBuilder("{\"docs\":[");
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            body.append(batch.get(i).mJson);
+        }
+        body.append("]}");
+        List<DocumentResult> results;
+        try {
+            results = mClient.bulkUpdate(mDatabase, body.toString()).getResults();
+        } catch (IOException | RuntimeException e) {
+            for (PendingWrite write : batch) {
+                write.mFuture.fail(e);
+            }
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            PendingWrite write = batch.get(i);
+            if (results == null || i >= results.size()) {
+                write.mFuture.fail(new IOException("No result was returned for the document."));
+                continue;
+            }
+            DocumentResult result = results.get(i);
+            if (result.getError() == null) {
+                DocumentUtils.setId(write.mDocument, result.getId());
+                DocumentUtils.setRev(write.mDocument, result.getRev());
+            }
+            write.mFuture.complete(result);
+        }
+    }
+
+    private static long utf8Length(String json) {
+        long length = 0;
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < json.length() && Character.isLowSurrogate(json.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+
+    private static class PendingWrite {
+
+        private final Object mDocument;
+        private final String mJson;
+        private final CouchFuture<DocumentResult> mFuture = new CouchFuture<>();
+
+
+        PendingWrite(Object document, String json) {
+            mDocument = document;
+            mJson = json;
+        }
+    }
+}
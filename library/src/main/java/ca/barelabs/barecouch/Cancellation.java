@@ -0,0 +1,55 @@
+package ca.barelabs.barecouch;
+
+import java.io.Closeable;
+
+import ca.barelabs.bareconnection.IOUtils;
+
+/**
+ * Aborts a request in progress from another thread. Transports that support it, like
+ * {@link HttpUrlConnectionTransport}, attach their connection while waiting for the response so cancelling
+ * disconnects it and the blocked request fails straight away. Other transports finish the request as usual,
+ * and a response that already arrived has to be closed by whoever holds it.
+ */
+public class Cancellation {
+
+    private Closeable mConnection;
+    private boolean mCancelled;
+
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Attaches the connection the request is using now, which is closed at once if already cancelled.
+     */
+    public void attach(Closeable connection) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mConnection = connection;
+                return;
+            }
+        }
+        IOUtils.closeQuietly(connection);
+    }
+
+    /**
+     * Detaches the connection once the request has its answer, cancelling after that only marks it cancelled.
+     */
+    public synchronized void detach() {
+        mConnection = null;
+    }
+
+    public void cancel() {
+        Closeable connection;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            connection = mConnection;
+            mConnection = null;
+        }
+        IOUtils.closeQuietly(connection);
+    }
+}
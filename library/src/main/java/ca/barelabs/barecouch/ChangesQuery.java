@@ -1,6 +1,8 @@
 package ca.barelabs.barecouch;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -36,7 +38,7 @@ public class ChangesQuery {
     private boolean mDescending;
     private String mFeed;
     private String mFilter;
-    private int mHeartbeat;
+    private int mHeartbeat = NOT_SET;
     private boolean mIncludeDocs;
     private boolean mAttachments;
     private boolean mAttEncodingInfo;
@@ -46,6 +48,7 @@ public class ChangesQuery {
     private String mStyle;
     private int mTimeout = NOT_SET;
     private String mView;
+    private Projection mProjection;
 
     
     /**
@@ -200,6 +203,22 @@ public class ChangesQuery {
         return this;
 	}
 
+	public Projection getProjection() {
+		return mProjection;
+	}
+
+	/**
+	 * Keeps only these paths of each change's doc when decoding, see {@link Projection}.
+	 */
+	public ChangesQuery fields(String... paths) {
+		return fields(Arrays.asList(paths));
+	}
+
+	public ChangesQuery fields(Collection<String> paths) {
+		mProjection = paths == null || paths.isEmpty() ? null : new Projection(paths);
+        return this;
+	}
+
 	public String buildQuery() throws IOException {
         Map<String, String> params = createParams();
         return params.isEmpty() ? CHANGES_PATH :
@@ -1,16 +1,15 @@
 package ca.barelabs.barecouch;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
 import ca.barelabs.bareconnection.GsonParser;
-import ca.barelabs.bareconnection.IOUtils;
 import ca.barelabs.bareconnection.ObjectParser;
-import ca.barelabs.bareconnection.RestResponse;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -28,10 +27,15 @@ public class ChangesResult implements Iterable<ChangesResult.DocumentChange> {
     private String mLastSeq;
     
 
-    public ChangesResult(ChangesQuery query, RestResponse response) throws IOException {
+    public ChangesResult(ChangesQuery query, TransportResponse response) throws IOException {
     	mQuery = query;
         mParser = response.getParser();
-        parseMetadata(response.parse());
+        try {
+            parseMetadata(new JsonReader(new InputStreamReader(response.getContent(), response.getIncomingCharset())));
+        } finally {
+            // Closing the response rather than the reader lets the connection be reused
+            response.close();
+        }
     }
 
     public ChangesQuery getQuery() {
@@ -62,8 +66,7 @@ public class ChangesResult implements Iterable<ChangesResult.DocumentChange> {
         return mLastSeq;
     }
     
-    private final void parseMetadata(String result) {
-        JsonReader jsonReader = new JsonReader(new StringReader(result));
+    private final void parseMetadata(JsonReader jsonReader) {
         JsonParser jsonParser = new JsonParser();
         try {
             jsonReader.beginObject();
@@ -71,9 +74,11 @@ public class ChangesResult implements Iterable<ChangesResult.DocumentChange> {
                 String name = jsonReader.nextName();
                 if (name.equals(FIELD_RESULTS)) {
                     jsonReader.beginArray();
+                    Projection projection = mQuery.getProjection();
                     while(jsonReader.hasNext()) {
-                        JsonElement jsonElement = jsonParser.parse(jsonReader);
-                        mChanges.add(new DocumentChange(mParser, jsonElement.getAsJsonObject()));
+                        JsonObject jsonObject = projection == null ? jsonParser.parse(jsonReader).getAsJsonObject()
+                            : projection.readRow(jsonReader, DocumentChange.FIELD_DOC);
+                        mChanges.add(new DocumentChange(mParser, jsonObject));
                     }
                     jsonReader.endArray();
                 } else if (name.equals(FIELD_LAST_SEQ)) {
@@ -85,8 +90,6 @@ public class ChangesResult implements Iterable<ChangesResult.DocumentChange> {
             jsonReader.endObject();
         } catch(IOException e) {
             throw new DatabaseAccessException(e);
-        } finally {
-            IOUtils.closeQuietly(jsonReader);
         }
     }
 
@@ -160,6 +163,14 @@ public class ChangesResult implements Iterable<ChangesResult.DocumentChange> {
             return getAsObject(getDocAsJsonElement(), clss);
         }
         
+        /**
+         * Binds the doc's tree with the Gson type adapter instead of printing and parsing it again.
+         */
+        public <T> T getDocAsObject(Class<T> clss, Gson gson) {
+            JsonElement element = getDocAsJsonElement();
+            return element == null || element.isJsonNull() ? null : gson.getAdapter(clss).fromJsonTree(element);
+        }
+        
         private <T> T getAsObject(JsonElement element, Class<T> clss) throws IOException {
             if (element == null) {
             	return null;
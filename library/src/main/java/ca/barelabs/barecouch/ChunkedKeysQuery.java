@@ -0,0 +1,193 @@
+package ca.barelabs.barecouch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.barelabs.barecouch.ViewResult.Row;
+
+/**
+ * Sends a view query with many keys as several requests of a chunk of keys each, run in parallel, rather than
+ * one request the server answers slowly and all or nothing. Rows come back in the order of the keys, as they
+ * would for a single request. The offset, total rows and update sequence of the result are the first chunk's.
+ */
+public class ChunkedKeysQuery {
+
+    private final CouchDbClient mClient;
+    private final String mDatabase;
+    private final ViewQuery mQuery;
+    private final List<List<?>> mChunks = new ArrayList<>();
+    private final int mParallelism;
+
+
+    public ChunkedKeysQuery(CouchDbClient client, String database, ViewQuery query, int chunkSize, int parallelism) {
+        if (chunkSize <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("Chunk size and parallelism must be positive.");
+        }
+        mClient = client;
+        mDatabase = database;
+        mQuery = query;
+        mParallelism = parallelism;
+        List<?> keys = new ArrayList<>(query.getKeysValues());
+        for (int start = 0; start < keys.size(); start += chunkSize) {
+            mChunks.add(keys.subList(start, Math.min(start + chunkSize, keys.size())));
+        }
+    }
+
+    public int getChunkCount() {
+        return mChunks.size();
+    }
+
+    public ViewResult getResult() throws IOException {
+        List<ViewResult> results = new ArrayList<>(mChunks.size());
+        if (mChunks.size() <= 1 || mParallelism == 1) {
+            for (List<?> chunk : mChunks) {
+                results.add(mClient.queryView(mDatabase, mQuery, chunk));
+            }
+        } else {
+            ExecutorService executor = newExecutor(Math.min(mParallelism, mChunks.size()));
+            try {
+                List<Future<ViewResult>> futures = new ArrayList<>(mChunks.size());
+                for (List<?> chunk : mChunks) {
+                    futures.add(submit(executor, chunk));
+                }
+                for (Future<ViewResult> future : futures) {
+                    results.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while querying view.");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        List<Row> rows = new ArrayList<>();
+        for (ViewResult result : results) {
+            rows.addAll(result.getRows());
+        }
+        if (results.isEmpty()) {
+            return new ViewResult(mQuery, mClient.getParser(), rows, 0, 0, null);
+        }
+        ViewResult first = results.get(0);
+        return new ViewResult(mQuery, first.getParser(), rows, first.getOffset(), first.getTotalRows(), first.getUpdateSeq());
+    }
+
+    /**
+     * Returns the rows as their chunks arrive, fetching no more than the parallelism of chunks ahead of the
+     * one being read, so memory stays bounded however many keys there are.
+     */
+    public Rows iterator() {
+        return new Rows();
+    }
+
+    private Future<ViewResult> submit(ExecutorService executor, final List<?> chunk) {
+        return executor.submit(new Callable<ViewResult>() {
+            @Override
+            public ViewResult call() throws IOException {
+                return mClient.queryView(mDatabase, mQuery, chunk);
+            }
+        });
+    }
+
+    private static ExecutorService newExecutor(int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "barecouch-keys-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    /**
+     * The rows of the query in the order of the keys. Failures are thrown from the iterator as
+     * {@link DatabaseAccessException}, and it must be closed when abandoned early to stop its requests.
+     */
+    public class Rows implements Iterator<Row>, Closeable {
+
+        private final ExecutorService mExecutor = newExecutor(Math.max(1, Math.min(mParallelism, mChunks.size())));
+        private final ArrayDeque<Future<ViewResult>> mPending = new ArrayDeque<>();
+        private int mNextChunk;
+        private Iterator<Row> mRows;
+        private boolean mClosed;
+
+
+        Rows() {
+            while (mPending.size() < mParallelism && mNextChunk < mChunks.size()) {
+                mPending.add(submit(mExecutor, mChunks.get(mNextChunk++)));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!mClosed && (mRows == null || !mRows.hasNext()) && !mPending.isEmpty()) {
+                Future<ViewResult> future = mPending.poll();
+                if (mNextChunk < mChunks.size()) {
+                    mPending.add(submit(mExecutor, mChunks.get(mNextChunk++)));
+                }
+                try {
+                    mRows = future.get().getRows().iterator();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new DatabaseAccessException(e);
+                } catch (ExecutionException e) {
+                    close();
+                    throw new DatabaseAccessException(e.getCause());
+                }
+            }
+            if (mPending.isEmpty()) {
+                mExecutor.shutdown();
+            }
+            return !mClosed && mRows != null && mRows.hasNext();
+        }
+
+        @Override
+        public Row next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("Attempt to iterate beyond the result set.");
+            }
+            return mRows.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                for (Future<ViewResult> future : mPending) {
+                    future.cancel(true);
+                }
+                mPending.clear();
+                mExecutor.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package ca.barelabs.barecouch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fails requests fast once an endpoint keeps failing. After the open period a limited number of probe requests
+ * are let through; the breaker closes again when one succeeds and reopens when one fails.
+ * <p>
+ * Every change of state starts a new generation. Outcomes are recorded against the generation a request was
+ * admitted in, so a slow request admitted before the breaker opened can't close it or use up a probe.
+ */
+public class CircuitBreaker {
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 10000;
+    public static final int DEFAULT_HALF_OPEN_PROBES = 1;
+    public static final long REJECTED = -1;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String mName;
+    private final int mFailureThreshold;
+    private final long mOpenNanos;
+    private final int mHalfOpenProbes;
+    private State mState = State.CLOSED;
+    private int mConsecutiveFailures;
+    private int mProbesInFlight;
+    private long mOpenedAtNanos;
+    private long mTripCount;
+    private long mRejectedCount;
+    private long mGeneration;
+
+
+    public CircuitBreaker(String name) {
+        this(name, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS, DEFAULT_HALF_OPEN_PROBES);
+    }
+
+    public CircuitBreaker(String name, int failureThreshold, long openMillis, int halfOpenProbes) {
+        if (failureThreshold < 1 || openMillis < 0 || halfOpenProbes < 1) {
+            throw new IllegalArgumentException("Failure threshold and half open probes must be at least 1 and open time can't be negative.");
+        }
+        mName = name;
+        mFailureThreshold = failureThreshold;
+        mOpenNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        mHalfOpenProbes = halfOpenProbes;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public synchronized State getState() {
+        if (mState == State.OPEN && System.nanoTime() - mOpenedAtNanos >= mOpenNanos) {
+            mState = State.HALF_OPEN;
+            mProbesInFlight = 0;
+            mGeneration++;
+        }
+        return mState;
+    }
+
+    public synchronized long getTripCount() {
+        return mTripCount;
+    }
+
+    public synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * Returns true when a request may be sent, every allowed request must be followed by
+     * {@link #recordSuccess()} or {@link #recordFailure()}.
+     */
+    public synchronized boolean tryAcquire() {
+        return acquire() != REJECTED;
+    }
+
+    /**
+     * Returns the generation a request is admitted in, or {@link #REJECTED}. Every admitted request must be
+     * followed by {@link #recordSuccess(long)}, {@link #recordFailure(long)} or {@link #release(long)}.
+     */
+    public synchronized long acquire() {
+        switch (getState()) {
+            case CLOSED:
+                return mGeneration;
+            case HALF_OPEN:
+                if (mProbesInFlight < mHalfOpenProbes) {
+                    mProbesInFlight++;
+                    return mGeneration;
+                }
+                break;
+            default:
+                break;
+        }
+        mRejectedCount++;
+        return REJECTED;
+    }
+
+    public synchronized void recordSuccess() {
+        recordSuccess(mGeneration);
+    }
+
+    public synchronized void recordSuccess(long generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        mConsecutiveFailures = 0;
+        if (mState == State.HALF_OPEN) {
+            mState = State.CLOSED;
+            mProbesInFlight = 0;
+            mGeneration++;
+        }
+    }
+
+    public synchronized void recordFailure() {
+        recordFailure(mGeneration);
+    }
+
+    public synchronized void recordFailure(long generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        mConsecutiveFailures++;
+        if (mState == State.HALF_OPEN || (mState == State.CLOSED && mConsecutiveFailures >= mFailureThreshold)) {
+            mState = State.OPEN;
+            mOpenedAtNanos = System.nanoTime();
+            mProbesInFlight = 0;
+            mTripCount++;
+            mGeneration++;
+        }
+    }
+
+    /**
+     * Gives back an admission that ended without saying anything about the endpoint, such as a request that
+     * failed on the client before it was sent.
+     */
+    public synchronized void release(long generation) {
+        if (generation == mGeneration && mState == State.HALF_OPEN && mProbesInFlight > 0) {
+            mProbesInFlight--;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + " " + getState() + " (trips " + mTripCount + ", rejected " + mRejectedCount + ")";
+    }
+}
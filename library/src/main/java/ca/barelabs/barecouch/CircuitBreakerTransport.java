@@ -0,0 +1,179 @@
+package ca.barelabs.barecouch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ca.barelabs.bareconnection.BackOffPolicy;
+
+/**
+ * Wraps a {@link Transport} with a {@link CircuitBreaker} per database and retries that draw from a shared
+ * {@link RetryBudget}. Requests are passed on with retries disabled so the wrapped transport doesn't retry on its own.
+ * Only GET and HEAD requests, or those marked read only or safe to resend on an IOException, are retried, waiting as
+ * the request's {@link BackOffPolicy} says or with a doubling delay when it has none.
+ */
+public class CircuitBreakerTransport implements Transport {
+
+    public static final long RETRY_DELAY_MILLIS = 100;
+    public static final int MAX_DELAY_SHIFT = 20;
+
+    private final Transport mTransport;
+    private final RetryBudget mRetryBudget;
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+    private final int mHalfOpenProbes;
+    private final ConcurrentMap<String, CircuitBreaker> mCircuitBreakers = new ConcurrentHashMap<>();
+
+
+    public CircuitBreakerTransport(Transport transport) {
+        this(transport, new RetryBudget());
+    }
+
+    public CircuitBreakerTransport(Transport transport, RetryBudget retryBudget) {
+        this(transport, retryBudget, CircuitBreaker.DEFAULT_FAILURE_THRESHOLD, CircuitBreaker.DEFAULT_OPEN_MILLIS, CircuitBreaker.DEFAULT_HALF_OPEN_PROBES);
+    }
+
+    public CircuitBreakerTransport(Transport transport, RetryBudget retryBudget, int failureThreshold, long openMillis, int halfOpenProbes) {
+        mTransport = transport;
+        mRetryBudget = retryBudget;
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+        mHalfOpenProbes = halfOpenProbes;
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    public RetryBudget getRetryBudget() {
+        return mRetryBudget;
+    }
+
+    public Map<String, CircuitBreaker> getCircuitBreakers() {
+        return Collections.unmodifiableMap(new HashMap<>(mCircuitBreakers));
+    }
+
+    public CircuitBreaker getCircuitBreaker(String endpoint) {
+        CircuitBreaker circuitBreaker = mCircuitBreakers.get(endpoint);
+        if (circuitBreaker == null) {
+            CircuitBreaker created = new CircuitBreaker(endpoint, mFailureThreshold, mOpenMillis, mHalfOpenProbes);
+            circuitBreaker = mCircuitBreakers.putIfAbsent(endpoint, created);
+            if (circuitBreaker == null) {
+                circuitBreaker = created;
+            }
+        }
+        return circuitBreaker;
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        CircuitBreaker circuitBreaker = getCircuitBreaker(getEndpoint(request));
+        TransportRequest singleAttempt = request.withMaxRetryAttempts(0);
+        mRetryBudget.recordRequest();
+        BackOffPolicy backOffPolicy = request.getBackOffPolicy();
+        if (backOffPolicy != null) {
+            backOffPolicy.reset();
+        }
+        int attempt = 0;
+        while (true) {
+            long generation = circuitBreaker.acquire();
+            if (generation == CircuitBreaker.REJECTED) {
+                throw new CircuitOpenException(circuitBreaker);
+            }
+            boolean recorded = false;
+            long delay;
+            try {
+                TransportResponse response = mTransport.execute(singleAttempt);
+                circuitBreaker.recordSuccess(generation);
+                recorded = true;
+                return response;
+            } catch (IOException e) {
+                if (singleAttempt.isCancelled()) {
+                    // Aborted by the caller, which says nothing about the server
+                    throw e;
+                }
+                recorded = true;
+                if (!isServerFailure(e)) {
+                    // The server is fine, it just refused this request
+                    circuitBreaker.recordSuccess(generation);
+                    throw e;
+                }
+                circuitBreaker.recordFailure(generation);
+                if (!isRetryable(request, e, attempt)) {
+                    throw e;
+                }
+                delay = backOffPolicy == null ? RETRY_DELAY_MILLIS << Math.min(attempt, MAX_DELAY_SHIFT) : backOffPolicy.getNextBackOffMillis();
+                if (delay == BackOffPolicy.STOP || !mRetryBudget.tryRetry()) {
+                    throw e;
+                }
+            } finally {
+                if (!recorded) {
+                    // Failed on our side without an answer from the server, don't hold on to a probe
+                    circuitBreaker.release(generation);
+                }
+            }
+            sleep(delay);
+            attempt++;
+        }
+    }
+
+    @Override
+    public boolean isSendingHeaders() {
+        return mTransport.isSendingHeaders();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mTransport.close();
+    }
+
+    private static String getEndpoint(TransportRequest request) {
+        String[] paths = request.getPaths();
+        if (paths.length == 0 || paths[0] == null) {
+            return "";
+        }
+        String path = paths[0];
+        int start = path.startsWith("/") ? 1 : 0;
+        int end = start;
+        while (end < path.length() && path.charAt(end) != '/' && path.charAt(end) != '?') {
+            end++;
+        }
+        return path.substring(start, end);
+    }
+
+    private static boolean isServerFailure(IOException e) {
+        return !(e instanceof TransportException) || ((TransportException) e).getStatusCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+
+    private static boolean isRetryable(TransportRequest request, IOException e, int attempt) {
+        if (attempt >= request.getMaxRetryAttempts() || request.getBody() instanceof InputStream || !isIdempotent(request)) {
+            return false;
+        }
+        if (e instanceof TransportException) {
+            int statusCode = ((TransportException) e).getStatusCode();
+            BackOffPolicy backOffPolicy = request.getBackOffPolicy();
+            return backOffPolicy == null || backOffPolicy.isBackOffRequired(statusCode);
+        }
+        return request.isRetryOnIOException();
+    }
+
+    private static boolean isIdempotent(TransportRequest request) {
+        String method = request.getMethod();
+        return TransportRequest.METHOD_GET.equals(method) || TransportRequest.METHOD_HEAD.equals(method)
+            || request.isReadOnly() || request.isRetryOnIOException();
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to retry request.", e);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package ca.barelabs.barecouch;
+
+import java.io.IOException;
+
+@SuppressWarnings("serial")
+public class CircuitOpenException extends IOException {
+
+    private final CircuitBreaker mCircuitBreaker;
+
+
+    public CircuitOpenException(CircuitBreaker circuitBreaker) {
+        super("Circuit breaker is open: " + circuitBreaker);
+        mCircuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+}
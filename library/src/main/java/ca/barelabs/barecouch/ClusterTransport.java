@@ -0,0 +1,223 @@
+package ca.barelabs.barecouch;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ca.barelabs.bareconnection.IOUtils;
+
+/**
+ * A {@link Transport} spreading requests over the nodes of a CouchDB cluster. Reads go to the healthy node with
+ * the lowest moving average latency and fail over to the next node when a node can't be reached. Writes go to the
+ * write node when one is set and healthy. Nodes are ejected after repeated failures and re-admitted once a
+ * background probe of the server root succeeds. Only
+ * requests that are {@link TransportRequest#isReadOnly() read only} are repeated on another node.
+ */
+public class ClusterTransport implements Transport {
+
+    public static final int NO_WRITE_NODE = -1;
+    public static final double DEFAULT_LATENCY_WEIGHT = 0.2;
+    public static final int DEFAULT_FAILURES_BEFORE_EJECTION = 2;
+    public static final long DEFAULT_PROBE_INTERVAL_MILLIS = 5000;
+
+    private final List<Node> mNodes = new ArrayList<>();
+    private final Node mWriteNode;
+    private final double mLatencyWeight;
+    private final int mFailuresBeforeEjection;
+    private final ScheduledExecutorService mProbeExecutor;
+
+
+    public ClusterTransport(List<? extends Transport> nodes) {
+        this(nodes, NO_WRITE_NODE, DEFAULT_PROBE_INTERVAL_MILLIS);
+    }
+
+    public ClusterTransport(List<? extends Transport> nodes, int writeNodeIndex, long probeIntervalMillis) {
+        this(nodes, writeNodeIndex, probeIntervalMillis, DEFAULT_LATENCY_WEIGHT, DEFAULT_FAILURES_BEFORE_EJECTION);
+    }
+
+    public ClusterTransport(List<? extends Transport> nodes, int writeNodeIndex, long probeIntervalMillis, double latencyWeight, int failuresBeforeEjection) {
+        if (nodes == null || nodes.isEmpty()) {
+            throw new IllegalArgumentException("At least one node must be provided.");
+        }
+        if (writeNodeIndex != NO_WRITE_NODE && (writeNodeIndex < 0 || writeNodeIndex >= nodes.size())) {
+            throw new IllegalArgumentException("The write node index must refer to one of the nodes.");
+        }
+        if (latencyWeight <= 0 || latencyWeight > 1 || failuresBeforeEjection < 1) {
+            throw new IllegalArgumentException("Latency weight must be in (0, 1] and failures before ejection at least 1.");
+        }
+        for (Transport transport : nodes) {
+            mNodes.add(new Node(transport));
+        }
+        mWriteNode = writeNodeIndex == NO_WRITE_NODE ? null : mNodes.get(writeNodeIndex);
+        mLatencyWeight = latencyWeight;
+        mFailuresBeforeEjection = failuresBeforeEjection;
+        mProbeExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "barecouch-cluster-probe");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // The first probe measures every node so reads don't all go to whichever node is listed first
+        mProbeExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probeNodes();
+            }
+        }, 0, probeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public List<Node> getNodes() {
+        return Collections.unmodifiableList(mNodes);
+    }
+
+    public Node getWriteNode() {
+        return mWriteNode;
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        boolean read = request.isReadOnly();
+        IOException failure = null;
+        for (Node node : selectNodes(read)) {
+            long start = System.nanoTime();
+            try {
+                TransportResponse response = node.mTransport.execute(request);
+                node.recordSuccess(System.nanoTime() - start);
+                return response;
+            } catch (TransportException e) {
+                if (e.getStatusCode() < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    // The node answered, the request itself was refused
+                    node.recordSuccess(System.nanoTime() - start);
+                    throw e;
+                }
+                node.recordFailure();
+                failure = e;
+            } catch (IOException e) {
+                if (request.isCancelled()) {
+                    throw e;
+                }
+                node.recordFailure();
+                failure = e;
+            }
+            if (!read) {
+                // A write may have been applied before the failure so never repeat it on another node
+                break;
+            }
+        }
+        throw failure;
+    }
+
+    @Override
+    public boolean isSendingHeaders() {
+        for (Node node : mNodes) {
+            if (!node.mTransport.isSendingHeaders()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mProbeExecutor.shutdownNow();
+        for (Node node : mNodes) {
+            IOUtils.closeQuietly(node.mTransport);
+        }
+    }
+
+    private List<Node> selectNodes(boolean read) {
+        List<Node> healthy = new ArrayList<>();
+        List<Double> latencies = new ArrayList<>();
+        List<Node> ejected = new ArrayList<>();
+        for (Node node : mNodes) {
+            if (!node.isHealthy()) {
+                ejected.add(node);
+                continue;
+            }
+            // Latencies keep changing under us so order on a snapshot of them
+            double latency = node.mLatencyNanos;
+            int index = 0;
+            while (index < latencies.size() && latencies.get(index) <= latency) {
+                index++;
+            }
+            healthy.add(index, node);
+            latencies.add(index, latency);
+        }
+        if (!read && mWriteNode != null && healthy.remove(mWriteNode)) {
+            healthy.add(0, mWriteNode);
+        }
+        // Ejected nodes are only a last resort when nothing healthy is left
+        healthy.addAll(ejected);
+        return healthy;
+    }
+
+    /**
+     * Probes the ejected nodes, and the nodes no request has measured yet to seed their latency.
+     */
+    private void probeNodes() {
+        for (Node node : mNodes) {
+            if (node.isHealthy() && node.mLatencyNanos != 0) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                node.mTransport.execute(new TransportRequest.Builder().get()).close();
+                node.recordSuccess(System.nanoTime() - start);
+            } catch (IOException e) {
+                if (node.isHealthy()) {
+                    node.recordFailure();
+                }
+                // Otherwise still down, try again on the next probe
+            } catch (RuntimeException e) {
+                // Keep probing the other nodes
+            }
+        }
+    }
+
+
+    public class Node {
+
+        private final Transport mTransport;
+        private volatile double mLatencyNanos;
+        private volatile int mConsecutiveFailures;
+        private volatile boolean mHealthy = true;
+
+
+        Node(Transport transport) {
+            mTransport = transport;
+        }
+
+        public Transport getTransport() {
+            return mTransport;
+        }
+
+        public boolean isHealthy() {
+            return mHealthy;
+        }
+
+        public double getLatencyMillis() {
+            return mLatencyNanos / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        synchronized void recordSuccess(long latencyNanos) {
+            mLatencyNanos = mLatencyNanos == 0 ? latencyNanos : mLatencyWeight * latencyNanos + (1 - mLatencyWeight) * mLatencyNanos;
+            mConsecutiveFailures = 0;
+            mHealthy = true;
+        }
+
+        synchronized void recordFailure() {
+            mConsecutiveFailures++;
+            if (mConsecutiveFailures >= mFailuresBeforeEjection) {
+                mHealthy = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ca.barelabs.barecouch;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a {@link Transport} so concurrent identical {@link TransportRequest#isCoalescable() coalescable} reads
+ * share a single request. The first caller sends the request and buffers the body; callers arriving while it is in
+ * flight wait for it and each get their own copy of the body to parse.
+ */
+public class CoalescingTransport implements Transport {
+
+    private final Transport mTransport;
+    private final ConcurrentMap<String, CouchFuture<BufferedTransportResponse>> mInFlight = new ConcurrentHashMap<>();
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+
+
+    public CoalescingTransport(Transport transport) {
+        mTransport = transport;
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        if (!request.isCoalescable()) {
+            return mTransport.execute(request);
+        }
+        String key = getKey(request);
+        CouchFuture<BufferedTransportResponse> call = new CouchFuture<>();
+        CouchFuture<BufferedTransportResponse> inFlight = mInFlight.putIfAbsent(key, call);
+        if (inFlight != null) {
+            mCoalescedCount.incrementAndGet();
+            return await(inFlight).copy();
+        }
+        mRequestCount.incrementAndGet();
+        try {
+            BufferedTransportResponse response = BufferedTransportResponse.buffer(mTransport.execute(request));
+            call.complete(response);
+            return response.copy();
+        } catch (IOException e) {
+            call.fail(e);
+            throw e;
+        } catch (RuntimeException e) {
+            call.fail(e);
+            throw e;
+        } finally {
+            mInFlight.remove(key, call);
+        }
+    }
+
+    @Override
+    public boolean isSendingHeaders() {
+        return mTransport.isSendingHeaders();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mTransport.close();
+    }
+
+    private static BufferedTransportResponse await(CouchFuture<BufferedTransportResponse> call) throws IOException {
+        try {
+            return call.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a shared response.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static String getKey(TransportRequest request) {
+        StringBuilder sb = new StringBuilder(request.getMethod())
+            .append(' ').append(Arrays.toString(request.getPaths()))
+            .append(' ').append(request.getParams())
+            .append(' ').append(request.getHeaders());
+        if (request.getBody() instanceof String) {
+            sb.append(' ').append(request.getBody());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,70 @@
+package ca.barelabs.barecouch;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the attempts and conflicts of updates retried on conflict, to tell how contended documents are.
+ */
+public class ConflictMetrics {
+
+    private final AtomicLong mUpdates = new AtomicLong();
+    private final AtomicLong mAttempts = new AtomicLong();
+    private final AtomicLong mConflicts = new AtomicLong();
+    private final AtomicLong mExhausted = new AtomicLong();
+
+
+    public long getUpdates() {
+        return mUpdates.get();
+    }
+
+    public long getAttempts() {
+        return mAttempts.get();
+    }
+
+    public long getConflicts() {
+        return mConflicts.get();
+    }
+
+    /**
+     * The number of updates that gave up after conflicting on every attempt.
+     */
+    public long getExhausted() {
+        return mExhausted.get();
+    }
+
+    /**
+     * The share of attempts that conflicted.
+     */
+    public double getConflictRate() {
+        long attempts = mAttempts.get();
+        return attempts == 0 ? 0 : (double) mConflicts.get() / attempts;
+    }
+
+    public void reset() {
+        mUpdates.set(0);
+        mAttempts.set(0);
+        mConflicts.set(0);
+        mExhausted.set(0);
+    }
+
+    void recordUpdate() {
+        mUpdates.incrementAndGet();
+    }
+
+    void recordAttempt() {
+        mAttempts.incrementAndGet();
+    }
+
+    void recordConflict() {
+        mConflicts.incrementAndGet();
+    }
+
+    void recordExhausted() {
+        mExhausted.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return mUpdates + " updates, " + mAttempts + " attempts, " + mConflicts + " conflicts, " + mExhausted + " exhausted";
+    }
+}
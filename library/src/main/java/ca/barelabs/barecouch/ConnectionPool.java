@@ -0,0 +1,178 @@
+package ca.barelabs.barecouch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ca.barelabs.bareconnection.IOUtils;
+
+/**
+ * Limits how many connections a client's transports have open at once to each host and returns finished
+ * connections to the JVM's keep-alive cache. A request waits for a permit before it connects and holds it until
+ * its response, or the stream of its body, is closed or disconnected, so streaming results that are never closed
+ * hold their permit. A request that waits longer than the acquire timeout fails rather than waiting forever.
+ * <p>
+ * The keep-alive cache itself belongs to {@link java.net.HttpURLConnection} and is shared by the whole JVM; see
+ * {@link #setMaxIdleConnectionsPerDestination(int)}.
+ */
+public class ConnectionPool {
+
+    public static final String PROPERTY_KEEP_ALIVE = "http.keepAlive";
+    public static final String PROPERTY_MAX_CONNECTIONS = "http.maxConnections";
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+    public static final int DEFAULT_MAX_DRAIN_BYTES = 64 * 1024;
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final int mMaxConnections;
+    private final int mMaxDrainBytes;
+    private final long mAcquireTimeoutMillis;
+    private final ConcurrentMap<String, Semaphore> mPermits = new ConcurrentHashMap<>();
+
+
+    public ConnectionPool() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_DRAIN_BYTES);
+    }
+
+    public ConnectionPool(int maxConnections, int maxDrainBytes) {
+        this(maxConnections, maxDrainBytes, DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+    }
+
+    public ConnectionPool(int maxConnections, int maxDrainBytes, long acquireTimeoutMillis) {
+        if (maxConnections <= 0 || maxDrainBytes < 0 || acquireTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Max connections must be positive and max drain bytes and timeout can't be negative.");
+        }
+        mMaxConnections = maxConnections;
+        mMaxDrainBytes = maxDrainBytes;
+        mAcquireTimeoutMillis = acquireTimeoutMillis;
+    }
+
+    /**
+     * The host and port of the url, which connections are limited by.
+     */
+    public static String getDestination(String url) {
+        try {
+            URL parsed = new URL(url);
+            int port = parsed.getPort() == -1 ? parsed.getDefaultPort() : parsed.getPort();
+            return parsed.getHost().toLowerCase() + ":" + port;
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    /**
+     * Sets how many idle keep-alive connections the JVM keeps for each host, which is what the
+     * http.maxConnections property controls; it doesn't limit open connections. This is a process wide setting
+     * that affects every {@link java.net.HttpURLConnection}, and the JVM reads it only once, when the first
+     * connection is opened, so it must be called before any request is made.
+     */
+    public static void setMaxIdleConnectionsPerDestination(int maxIdleConnections) {
+        System.setProperty(PROPERTY_KEEP_ALIVE, String.valueOf(true));
+        System.setProperty(PROPERTY_MAX_CONNECTIONS, String.valueOf(maxIdleConnections));
+    }
+
+    /**
+     * The most connections open at once to each host.
+     */
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    public int getAvailableConnections(String destination) {
+        Semaphore permits = mPermits.get(destination);
+        return permits == null ? mMaxConnections : permits.availablePermits();
+    }
+
+    public long getAcquireTimeoutMillis() {
+        return mAcquireTimeoutMillis;
+    }
+
+    public int getMaxDrainBytes() {
+        return mMaxDrainBytes;
+    }
+
+    /**
+     * Waits until fewer than {@link #getMaxConnections()} connections to the destination, see
+     * {@link #getDestination(String)}, are open. The permit must be released once the connection is closed, or
+     * straight away if opening it fails.
+     */
+    public Permit acquire(String destination) throws IOException {
+        Semaphore permits = mPermits.get(destination);
+        if (permits == null) {
+            Semaphore created = new Semaphore(mMaxConnections, true);
+            permits = mPermits.putIfAbsent(destination, created);
+            if (permits == null) {
+                permits = created;
+            }
+        }
+        try {
+            if (!permits.tryAcquire(mAcquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for one of " + mMaxConnections + " connections to " + destination
+                    + ", responses may not have been closed.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection.");
+        }
+        return new Permit(permits);
+    }
+
+    /**
+     * Reads what is left of the response body so the connection can go back to the keep-alive cache.
+     * Responses with more than {@link #getMaxDrainBytes()} remaining (like continuous feeds) are disconnected.
+     * The content is the body as the transport reads it, not the {@link ResponseInputStream} given to callers,
+     * and null when it couldn't be opened.
+     */
+    public void release(TransportResponse response, InputStream content) {
+        try {
+            if (content != null && drain(content, mMaxDrainBytes)) {
+                content.close();
+                return;
+            }
+        } catch (IOException e) {
+            // Fall through and drop the connection
+        }
+        IOUtils.closeQuietly(content);
+        response.disconnect();
+    }
+
+    private static boolean drain(InputStream in, int maxBytes) throws IOException {
+        byte[] buffer = new byte[4096];
+        int remaining = maxBytes;
+        while (remaining >= 0) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, remaining + 1));
+            if (read == -1) {
+                return true;
+            }
+            remaining -= read;
+        }
+        return false;
+    }
+
+
+    /**
+     * One open connection. Releasing it more than once has no effect.
+     */
+    public static class Permit {
+
+        private final Semaphore mPermits;
+        private final AtomicBoolean mReleased = new AtomicBoolean();
+
+
+        Permit(Semaphore permits) {
+            mPermits = permits;
+        }
+
+        public void release() {
+            if (mReleased.compareAndSet(false, true)) {
+                mPermits.release();
+            }
+        }
+    }
+}
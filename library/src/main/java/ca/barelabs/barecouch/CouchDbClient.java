@@ -16,25 +16,34 @@
 package ca.barelabs.barecouch;
 
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import ca.barelabs.bareconnection.ContentInputStream;
 import ca.barelabs.bareconnection.BackOffPolicy;
+import ca.barelabs.bareconnection.GsonParser;
 import ca.barelabs.bareconnection.ObjectParser;
 import ca.barelabs.bareconnection.RestConnection;
-import ca.barelabs.bareconnection.RestException;
 import ca.barelabs.bareconnection.RestProperties;
-import ca.barelabs.bareconnection.RestResponse;
-import ca.barelabs.bareconnection.RestUtils;
 import ca.barelabs.barecouch.responses.SessionResponse;
 import ca.barelabs.barecouch.responses.DatabaseInfo;
 import ca.barelabs.barecouch.responses.DocumentResponse;
 import ca.barelabs.barecouch.responses.Response;
 import ca.barelabs.barecouch.responses.UuidList;
+import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
-public class CouchDbClient {
+public class CouchDbClient implements Closeable {
 
     public static final String REVISION_PARAM = "rev";
     public static final String COUNT_PARAM = "count";
@@ -43,16 +52,53 @@ public class CouchDbClient {
     public static final String UUIDS_PATH = "_uuids";
     public static final String SESSION_PATH = "_session";
     public static final String BULK_DOCS_PATH = "_bulk_docs";
+    public static final int DEFAULT_UPDATE_ATTEMPTS = 10;
+    public static final long CONFLICT_DELAY_MILLIS = 10;
+    public static final long MAX_CONFLICT_DELAY_MILLIS = 1000;
+    public static final int DEFAULT_KEYS_CHUNK_SIZE = 1000;
+    public static final int DEFAULT_KEYS_PARALLELISM = 4;
 
-    private final RestProperties mProperties;
+    private static final int MAX_DELAY_SHIFT = 20;
+    private static final Map<String, String> UPDATE_SEQ_PARAMS = Collections.singletonMap(ViewQuery.PARAM_UPDATE_SEQ, "true");
+    private static final Map<String, String> UPDATE_SEQ_ONLY_PARAMS;
+    static {
+        Map<String, String> params = new HashMap<>(UPDATE_SEQ_PARAMS);
+        params.put(ViewQuery.PARAM_LIMIT, "0");
+        UPDATE_SEQ_ONLY_PARAMS = Collections.unmodifiableMap(params);
+    }
+
+    private final Transport mTransport;
+    private final ConflictMetrics mConflictMetrics = new ConflictMetrics();
     private ObjectParser mParser;
     private int mMaxRetryAttempts = RestConnection.DEFAULT_MAX_RETRY_ATTEMPTS;
     private boolean mRetryOnIOException;
     private BackOffPolicy mBackOffPolicy;
+    private boolean mGzipResponses;
+    private int mGzipRequestThreshold = TransportRequest.NO_COMPRESSION;
+    private DocumentCache mDocumentCache;
+    private ViewCache mViewCache;
+    private int mKeysChunkSize = DEFAULT_KEYS_CHUNK_SIZE;
+    private int mKeysParallelism = DEFAULT_KEYS_PARALLELISM;
 
 
     public CouchDbClient(RestProperties properties) {
-        mProperties = properties;
+        this(new RestConnectionTransport(properties));
+    }
+
+    public CouchDbClient(Transport transport) {
+        mTransport = transport;
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Closes the transport, which stops the background threads of cluster, hedging and other wrapping transports.
+     */
+    @Override
+    public void close() throws IOException {
+        mTransport.close();
     }
 
     public ObjectParser getParser() {
@@ -63,6 +109,14 @@ public class CouchDbClient {
 		mParser = parser;
 	}
 
+    /**
+     * The parser set on this client, or a plain Gson parser like BareConnection uses when none was set.
+     */
+    ObjectParser getParserOrDefault() {
+        ObjectParser parser = mParser;
+        return parser == null ? new GsonParser(new Gson()) : parser;
+    }
+
     public int getMaxRetryAttempts() {
         return mMaxRetryAttempts;
     }
@@ -87,6 +141,85 @@ public class CouchDbClient {
         mBackOffPolicy = backOffPolicy;
     }
 
+    public boolean isGzipResponses() {
+        return mGzipResponses;
+    }
+
+    /**
+     * Ask the server to gzip view and changes responses. Only transports that send request headers,
+     * like {@link HttpUrlConnectionTransport}, can negotiate compression, so the default transport is
+     * replaced by one when this is set on the {@link Builder}.
+     */
+    public void setGzipResponses(boolean gzipResponses) {
+        if (gzipResponses && !mTransport.isSendingHeaders()) {
+            throw new IllegalStateException("The transport doesn't send request headers so it can't negotiate compression.");
+        }
+        mGzipResponses = gzipResponses;
+    }
+
+    public int getGzipRequestThreshold() {
+        return mGzipRequestThreshold;
+    }
+
+    /**
+     * Gzip document, bulk and attachment uploads of at least this many bytes, or {@link TransportRequest#NO_COMPRESSION}.
+     * Only transports that send request headers, like {@link HttpUrlConnectionTransport}, compress uploads, so the
+     * default transport is replaced by one when this is set on the {@link Builder}.
+     */
+    public void setGzipRequestThreshold(int gzipRequestThreshold) {
+        if (gzipRequestThreshold != TransportRequest.NO_COMPRESSION && !mTransport.isSendingHeaders()) {
+            throw new IllegalStateException("The transport doesn't send request headers so it can't compress uploads.");
+        }
+        mGzipRequestThreshold = gzipRequestThreshold;
+    }
+
+    public DocumentCache getDocumentCache() {
+        return mDocumentCache;
+    }
+
+    /**
+     * Cache documents read with {@link #get(String, String, Class)} and {@link #find(String, String, Class)}, or null.
+     * Every read is still revalidated with the document's ETag, so a cached document is never stale, but an unchanged
+     * one costs a body-less 304 Not Modified. Only transports that send request headers, like
+     * {@link HttpUrlConnectionTransport}, can revalidate, so the cache is bypassed with others and the
+     * default transport is replaced by one when the cache is set on the {@link Builder}.
+     */
+    public void setDocumentCache(DocumentCache documentCache) {
+        mDocumentCache = documentCache;
+    }
+
+    public ViewCache getViewCache() {
+        return mViewCache;
+    }
+
+    /**
+     * Cache results of {@link #queryView(String, ViewQuery)}, or null. Cached results are revalidated on every query,
+     * by ETag when the transport sends request headers and otherwise by the view's update sequence.
+     */
+    public void setViewCache(ViewCache viewCache) {
+        mViewCache = viewCache;
+    }
+
+    public int getKeysChunkSize() {
+        return mKeysChunkSize;
+    }
+
+    /**
+     * View queries with more keys than this are sent in chunks of this many keys, see {@link ChunkedKeysQuery}.
+     * Zero sends every query in one request.
+     */
+    public void setKeysChunkSize(int keysChunkSize) {
+        mKeysChunkSize = keysChunkSize;
+    }
+
+    public int getKeysParallelism() {
+        return mKeysParallelism;
+    }
+
+    public void setKeysParallelism(int keysParallelism) {
+        mKeysParallelism = keysParallelism;
+    }
+
 	public UuidList getUuidList(int count) throws IOException {
         return executeUuidList(count).parseAs(UuidList.class);
     }
@@ -115,7 +248,7 @@ public class CouchDbClient {
 		try {
 			executeDatabaseHead(database).parse();
 			return true;
-		} catch (RestException e) {
+		} catch (TransportException e) {
 			// CouchDb returns a 404 Not Found if database doesn't exists
 			if (e.getStatusCode() == RestConnection.SC_NOT_FOUND) {
 				return false;
@@ -127,7 +260,7 @@ public class CouchDbClient {
     public boolean createDatabase(String database) throws IOException {
     	try {
 			return executeDatabasePut(database).parseAs(Response.class).isOk();
-		} catch (RestException e) {
+		} catch (TransportException e) {
 			// CouchDb returns a 412 Precondition Failed if database already exists
 			if (e.getStatusCode() == RestConnection.SC_PRECON_FAILED) {
 				return false;
@@ -139,7 +272,7 @@ public class CouchDbClient {
     public boolean deleteDatabase(String database) throws IOException {
 		try {
 			return executeDatabaseDelete(database).parseAs(Response.class).isOk();
-		} catch (RestException e) {
+		} catch (TransportException e) {
 			// CouchDb returns a 404 Not Found if database doesn't exist
 			if (e.getStatusCode() == RestConnection.SC_NOT_FOUND) {
 				return false;
@@ -152,7 +285,7 @@ public class CouchDbClient {
 		try {
 			executeDocumentHead(database, docId).parse();
 			return true;
-		} catch (RestException e) {
+		} catch (TransportException e) {
 			// CouchDb returns a 404 Not Found if database doesn't contain document
 			if (e.getStatusCode() == RestConnection.SC_NOT_FOUND) {
 				return false;
@@ -163,11 +296,11 @@ public class CouchDbClient {
 
     public boolean containsAsLatest(String database, String docId, String revId) throws IOException {
         try {
-        	RestResponse response = executeDocumentHead(database, docId);
+        	TransportResponse response = executeDocumentHead(database, docId);
         	response.parse();
-            String etag = response.getConnection().getHeaderField(ETAG_FIELD);
+            String etag = response.getHeaderField(ETAG_FIELD);
             return revId != null && etag != null && revId.equals(etag);
-        } catch (RestException e) {
+        } catch (TransportException e) {
             // CouchDb returns a 404 Not Found if database doesn't contain document
             if (e.getStatusCode() == RestConnection.SC_NOT_FOUND) {
                 return false;
@@ -178,8 +311,8 @@ public class CouchDbClient {
 
     public <D> D get(String database, String docId, Class<D> documentClss) throws IOException {
     	try {
-        	return executeDocumentGet(database, docId).parseAs(documentClss);
-		} catch (RestException e) {
+        	return executeCachedDocumentGet(database, docId).parseAs(documentClss);
+		} catch (TransportException e) {
 			// CouchDb returns a 404 Not Found if database doesn't contain document
 			if (e.getStatusCode() == RestConnection.SC_NOT_FOUND) {
 				return null;
@@ -189,7 +322,19 @@ public class CouchDbClient {
     }
 
     public <D> D find(String database, String docId, Class<D> documentClss) throws IOException {
-		return executeDocumentGet(database, docId).parseAs(documentClss);
+		return executeCachedDocumentGet(database, docId).parseAs(documentClss);
+    }
+
+    /**
+     * Fetches documents in batches rather than one request each, see {@link DocumentFetcher}. Documents are
+     * returned in the order of the ids.
+     */
+    public <D> List<FetchedDocument<D>> getAll(String database, Collection<String> docIds, Class<D> documentClss) throws IOException {
+        return new DocumentFetcher(this).getAll(database, docIds, documentClss);
+    }
+
+    public <D> Iterator<FetchedDocument<D>> getAllForStreaming(String database, Iterator<String> docIds, Class<D> documentClss) {
+        return new DocumentFetcher(this).iterateAll(database, docIds, documentClss);
     }
 
     public DocumentResponse create(String database, Object document) throws IOException {
@@ -206,7 +351,7 @@ public class CouchDbClient {
     }
 
     public <D> D create(String database, String docId, Object document, Class<D> responseClss) throws IOException {
-    	RestResponse response = docId == null ? executeDocumentPost(database, document) : executeDocumentPut(database, docId, document);
+    	TransportResponse response = docId == null ? executeDocumentPost(database, document) : executeDocumentPut(database, docId, document);
 	    D documentResponse = response.parseAs(responseClss);
 	    DocumentUtils.setId(document, DocumentUtils.getId(documentResponse));
 	    DocumentUtils.setRev(document, DocumentUtils.getRev(documentResponse));
@@ -226,12 +371,68 @@ public class CouchDbClient {
     }
 
     public <D> D update(String database, String docId, Object document, Class<D> responseClss) throws IOException {
-    	RestResponse response = executeDocumentPut(database, docId, document);
+    	TransportResponse response = executeDocumentPut(database, docId, document);
 	    D documentResponse = response.parseAs(responseClss);
 	    DocumentUtils.setRev(document, DocumentUtils.getRev(documentResponse));
 	    return documentResponse;
     }
 
+    /**
+     * Reads the document, applies the merger and saves the result, repeating from a fresh read with a jittered
+     * back off whenever the save conflicts with another writer. Returns the saved document, or null when the
+     * merger returned null.
+     */
+    public <D> D updateWithRetry(String database, String docId, Class<D> documentClss, DocumentMerger<D> merger) throws IOException {
+        return updateWithRetry(database, docId, documentClss, merger, DEFAULT_UPDATE_ATTEMPTS);
+    }
+
+    public <D> D updateWithRetry(String database, String docId, Class<D> documentClss, DocumentMerger<D> merger, int maxAttempts) throws IOException {
+        D current = get(database, docId, documentClss);
+        return saveWithRetry(database, docId, documentClss, merger, maxAttempts, merger.merge(current));
+    }
+
+    /**
+     * Saves the document as it is, which saves a read when it's already up to date, and only on conflict reads
+     * the latest version and applies the merger to it.
+     */
+    public <D> D updateWithRetry(String database, D document, Class<D> documentClss, DocumentMerger<D> merger) throws IOException {
+        return saveWithRetry(database, DocumentUtils.getId(document), documentClss, merger, DEFAULT_UPDATE_ATTEMPTS, document);
+    }
+
+    public ConflictMetrics getConflictMetrics() {
+        return mConflictMetrics;
+    }
+
+    private <D> D saveWithRetry(String database, String docId, Class<D> documentClss, DocumentMerger<D> merger, int maxAttempts, D document) throws IOException {
+        mConflictMetrics.recordUpdate();
+        for (int attempt = 1; document != null; attempt++) {
+            mConflictMetrics.recordAttempt();
+            try {
+                update(database, docId, document);
+                return document;
+            } catch (TransportException e) {
+                if (e.getStatusCode() != HttpURLConnection.HTTP_CONFLICT) {
+                    throw e;
+                }
+                mConflictMetrics.recordConflict();
+                if (attempt >= maxAttempts) {
+                    mConflictMetrics.recordExhausted();
+                    throw e;
+                }
+            }
+            // Full jitter keeps writers that conflicted together from retrying together
+            long maxDelay = Math.min(MAX_CONFLICT_DELAY_MILLIS, CONFLICT_DELAY_MILLIS << Math.min(attempt - 1, MAX_DELAY_SHIFT));
+            try {
+                Thread.sleep((long) (Math.random() * maxDelay));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to retry update.");
+            }
+            document = merger.merge(get(database, docId, documentClss));
+        }
+        return null;
+    }
+
     public DocumentResponse delete(String database, Object document) throws IOException {
         return delete(database, document, DocumentResponse.class);
     }
@@ -247,7 +448,7 @@ public class CouchDbClient {
     }
     
     public <D> D delete(String database, String docId, String rev, Class<D> responseClss) throws IOException {
-    	RestResponse response = executeDocumentDelete(database, docId, rev);
+    	TransportResponse response = executeDocumentDelete(database, docId, rev);
 	    return response.parseAs(responseClss);
     }
     
@@ -256,10 +457,16 @@ public class CouchDbClient {
     }
     
     public ContentInputStream getAttachment(String database, String docId, String rev, String attachmentName) throws IOException {
-        RestResponse response = executeGetAttachment(database, docId, rev, attachmentName);
-        String contentType = response.getConnection().getContentType();
-        int contentLength = response.getConnection().getContentLength();
-        return new ContentInputStream(response.getContent(), contentType, contentLength);
+        TransportResponse response = executeGetAttachment(database, docId, rev, attachmentName);
+        String contentType = response.getContentType();
+        int contentLength = response.getContentLength();
+        try {
+            // Closing the stream closes the response and returns its connection
+            return new ContentInputStream(response.getContent(), contentType, contentLength);
+        } catch (IOException | RuntimeException e) {
+            response.close();
+            throw e;
+        }
     }
     
     public DocumentResponse createAttachment(String database, String docId, String rev, String attachmentName, ContentInputStream in) throws IOException {
@@ -267,175 +474,361 @@ public class CouchDbClient {
     }
     
     public <D> D createAttachment(String database, String docId, String rev, String attachmentName, ContentInputStream in, Class<D> responseClss) throws IOException {
-    	RestResponse response = executeCreateAttachment(database, docId, rev, attachmentName, in);
+    	TransportResponse response = executeCreateAttachment(database, docId, rev, attachmentName, in);
 	    return response.parseAs(responseClss);
     }
 
     public BulkResult bulkUpdate(String database, Object request) throws IOException {
-        RestResponse response = executeBulkUpdate(database, request);
+        TransportResponse response = executeBulkUpdate(database, request);
         return new BulkResult(response);
     }
+
+    /**
+     * Saves documents in one bulk update and reads the results as they are returned, see {@link StreamingBulkResult}.
+     */
+    public StreamingBulkResult bulkUpdateForStreamingResult(String database, Object request) throws IOException {
+        TransportResponse response = executeBulkUpdate(database, request);
+        return new StreamingBulkResult(response);
+    }
+
+    public StreamingBulkResult bulkUpdateForStreamingResult(String database, Iterator<?> documents) throws IOException {
+        TransportResponse response = executeBulkUpdate(database, documents);
+        return new StreamingBulkResult(response);
+    }
+
+    /**
+     * Saves every document from the iterator in one bulk update, serializing each only as the request body is
+     * sent, so memory use doesn't grow with the number of documents. The request can't be retried.
+     */
+    public BulkResult bulkUpdate(String database, Iterator<?> documents) throws IOException {
+        TransportResponse response = executeBulkUpdate(database, documents);
+        return new BulkResult(response);
+    }
+    
+    /**
+     * Returns a writer that batches documents written one at a time into bulk updates of the database.
+     * The writer must be closed to send its last batch.
+     */
+    public BulkWriter newBulkWriter(String database) {
+        return new BulkWriter(this, database);
+    }
+
+    public BulkWriter newBulkWriter(String database, int maxDocuments, long maxBytes, long lingerMillis) {
+        return new BulkWriter(this, database, maxDocuments, maxBytes, lingerMillis);
+    }
+
+    /**
+     * Returns a loader that uploads a large source of documents into the database in parallel bulk updates.
+     */
+    public BulkLoader newBulkLoader(String database) {
+        return new BulkLoader(this, database);
+    }
+
+    public BulkLoader newBulkLoader(String database, int chunkSize, int parallelism, int maxRetries) {
+        return new BulkLoader(this, database, chunkSize, parallelism, maxRetries);
+    }
     
     public ViewResult queryView(String database, ViewQuery query) throws IOException {
-    	RestResponse response = executeViewQuery(database, query);
+        if (isChunked(query)) {
+            return new ChunkedKeysQuery(this, database, query, mKeysChunkSize, mKeysParallelism).getResult();
+        }
+        ViewCache viewCache = mViewCache;
+        if (viewCache != null) {
+            return queryCachedView(viewCache, database, query);
+        }
+    	TransportResponse response = executeViewQuery(database, query, true);
         return new ViewResult(query, response);
     }
     
+    /**
+     * Queries the view with some parameters replaced, leaving the query unchanged and bypassing the view cache.
+     */
+    ViewResult queryView(String database, ViewQuery query, Map<String, String> overrides) throws IOException {
+        TransportResponse response = executeViewQuery(database, query, query.buildQuery(overrides), null, false);
+        return new ViewResult(query, response);
+    }
+
+    /**
+     * Iterates over every row of the view in pages, see {@link PagedViewIterator}.
+     */
+    public PagedViewIterator iterateView(String database, ViewQuery query, int pageSize) {
+        return new PagedViewIterator(this, database, query, pageSize);
+    }
+
+    public PagedViewIterator iterateView(String database, ViewQuery query, int pageSize, ViewCursor cursor) {
+        return new PagedViewIterator(this, database, query, pageSize, cursor);
+    }
+    
     public StreamingViewResult queryForStreamingView(String database, ViewQuery query) throws IOException {
-    	RestResponse response = executeViewQuery(database, query);
+    	TransportResponse response = executeViewQuery(database, query);
+        return new StreamingViewResult(query, response);
+    }
+
+    /**
+     * Queries the view for some of the query's keys.
+     */
+    ViewResult queryView(String database, ViewQuery query, List<?> keys) throws IOException {
+        TransportResponse response = executeViewQuery(database, query.buildQuery(), query.getKeysAsJson(keys), null, false);
+        return new ViewResult(query, response);
+    }
+
+    /**
+     * Streams the rows of a query with many keys, which are fetched in chunks, in the order of the keys. Queries
+     * with a limit or skip are sent as one request, since those apply to the whole result.
+     */
+    public ChunkedKeysQuery.Rows queryForStreamingKeys(String database, ViewQuery query) {
+        if (!query.hasMultipleKeys()) {
+            throw new IllegalArgumentException("Streaming by keys needs a query with multiple keys.");
+        }
+        int chunkSize = isChunkable(query) ? mKeysChunkSize : Integer.MAX_VALUE;
+        return new ChunkedKeysQuery(this, database, query, chunkSize, mKeysParallelism).iterator();
+    }
+
+    StreamingViewResult queryForStreamingView(String database, ViewQuery query, Map<String, String> overrides) throws IOException {
+        TransportResponse response = executeViewQuery(database, query, query.buildQuery(overrides), null, false);
         return new StreamingViewResult(query, response);
     }
+
+    /**
+     * Scans the view with several concurrent requests over ranges of keys, see {@link ParallelViewScanner}.
+     */
+    public ParallelViewScanner.Scan scanView(String database, ViewQuery query, boolean ordered) throws IOException {
+        return new ParallelViewScanner(this, database).scan(query, ordered);
+    }
     
     public ChangesResult queryChanges(String database, ChangesQuery query) throws IOException {
-    	RestResponse response = executeChangesQuery(database, query);
+    	TransportResponse response = executeChangesQuery(database, query);
         return new ChangesResult(query, response);
     }
     
     public StreamingChangesResult queryForStreamingChanges(String database, ChangesQuery query) throws IOException {
-    	RestResponse response = executeChangesQuery(database, query);
+    	TransportResponse response = executeChangesQuery(database, query);
         return new StreamingChangesResult(query, response);
     }
     
-	public RestResponse executeUuidList(int count) throws IOException {
-        RestConnection connection = newConnectionBuilder(UUIDS_PATH)
+	public TransportResponse executeUuidList(int count) throws IOException {
+        return execute(newRequestBuilder(UUIDS_PATH)
             .param(COUNT_PARAM, String.valueOf(count))
-            .build();
-        return connection.get();
+            .get());
     }
 
-    public RestResponse executeSessionGet() throws IOException {
+    public TransportResponse executeSessionGet() throws IOException {
         return executeDatabaseGet(SESSION_PATH);
     }
     
-    public RestResponse executeAllDatabasesGet() throws IOException {
+    public TransportResponse executeAllDatabasesGet() throws IOException {
         return executeDatabaseGet(ALL_DBS_PATH);
     }
 
-    public RestResponse executeDatabaseHead(String database) throws IOException {
+    public TransportResponse executeDatabaseHead(String database) throws IOException {
         ensureDatabase(database);
-		RestConnection connection = createConnection(database);
-		return connection.head();
+		return execute(newRequestBuilder(database).head());
     }
     
-    public RestResponse executeDatabaseGet(String database) throws IOException {
+    public TransportResponse executeDatabaseGet(String database) throws IOException {
         ensureDatabase(database);
-        RestConnection connection = createConnection(database);
-        return connection.get();
+        return execute(newRequestBuilder(database).get());
     }
     
-    public RestResponse executeDatabasePut(String database) throws IOException {
+    public TransportResponse executeDatabasePut(String database) throws IOException {
         ensureDatabase(database);
-        RestConnection connection = createConnection(database);
-        return connection.put();
+        return execute(newRequestBuilder(database).put());
     }
     
-    public RestResponse executeDatabaseDelete(String database) throws IOException {
+    public TransportResponse executeDatabaseDelete(String database) throws IOException {
         ensureDatabase(database);
-        RestConnection connection = createConnection(database);
-        return connection.delete();
+        return execute(newRequestBuilder(database).delete());
     }
 
-    public RestResponse executeDocumentHead(String database, String docId) throws IOException {
+    public TransportResponse executeDocumentHead(String database, String docId) throws IOException {
         ensureDatabase(database);
         ensureDocumentId(docId);
-		RestConnection connection = createConnection(database, docId);
-		return connection.head();
+		return execute(newRequestBuilder(database, docId).hedgeable(true).coalescable(true).head());
     }
 
-    public RestResponse executeDocumentGet(String database, String docId) throws IOException {
+    public TransportResponse executeDocumentGet(String database, String docId) throws IOException {
         ensureDatabase(database);
         ensureDocumentId(docId);
-		RestConnection connection = createConnection(database, docId);
-		return connection.get();
+		return execute(newRequestBuilder(database, docId).hedgeable(true).coalescable(true).get());
+    }
+
+    private TransportResponse executeCachedDocumentGet(String database, String docId) throws IOException {
+        DocumentCache documentCache = mDocumentCache;
+        if (documentCache == null || !mTransport.isSendingHeaders()) {
+            // Without If-None-Match every read is a full download, so caching would only add copies
+            return executeDocumentGet(database, docId);
+        }
+        ensureDatabase(database);
+        ensureDocumentId(docId);
+        TransportRequest.Builder builder = newRequestBuilder(database, docId).hedgeable(true).coalescable(true);
+        BufferedTransportResponse cached = documentCache.get(database, docId);
+        if (cached != null) {
+            builder.header(HttpUrlConnectionTransport.HEADER_IF_NONE_MATCH, cached.getHeaderField(ETAG_FIELD));
+        }
+        TransportResponse response;
+        try {
+            response = execute(builder.get());
+        } catch (TransportException e) {
+            if (e.getStatusCode() == RestConnection.SC_NOT_FOUND) {
+                documentCache.remove(database, docId);
+            }
+            throw e;
+        }
+        if (cached != null && response.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            response.close();
+            return documentCache.notModified(cached);
+        }
+        return documentCache.put(database, docId, response);
     }
 
-    public RestResponse executeDocumentPut(String database, String docId, Object document) throws IOException {
+    public TransportResponse executeDocumentPut(String database, String docId, Object document) throws IOException {
         ensureDatabase(database);
         ensureDocumentId(docId);
-		RestConnection connection = createConnection(database, docId);
-		return connection.put(document);
+		return execute(newUploadRequestBuilder(database, docId).put(document));
     }
 
-    public RestResponse executeDocumentPost(String database, Object document) throws IOException {
+    public TransportResponse executeDocumentPost(String database, Object document) throws IOException {
         ensureDatabase(database);
-		RestConnection connection = createConnection(database);
-		return connection.post(document);
+		return execute(newUploadRequestBuilder(database).post(document));
     }
 
-    public RestResponse executeDocumentDelete(String database, String docId, String docRev) throws IOException {
+    public TransportResponse executeDocumentDelete(String database, String docId, String docRev) throws IOException {
         ensureDatabase(database);
         ensureDocumentId(docId);
         ensureDocumentRev(docRev);
-        RestConnection connection = newConnectionBuilder(database, docId)
+        return execute(newRequestBuilder(database, docId)
             .param(REVISION_PARAM, docRev)
-            .build();
-		return connection.delete();
+            .delete());
     }
 
-    public RestResponse executeGetAttachment(String database, String docId, String docRev, String attachmentName) throws IOException {
+    public TransportResponse executeGetAttachment(String database, String docId, String docRev, String attachmentName) throws IOException {
         ensureDatabase(database);
         ensureDocumentId(docId);
         ensureAttachmentName(attachmentName);
-        RestConnection.Builder builder = newConnectionBuilder(database, docId, attachmentName);
+        TransportRequest.Builder builder = newRequestBuilder(database, docId, attachmentName);
         if (docRev != null) {
             builder.param(REVISION_PARAM, docRev);
         }
-        RestConnection connection = builder.build();
-        return connection.get();
+        return execute(builder.get());
     }
       
 
-    public RestResponse executeCreateAttachment(String database, String docId, String docRev, String attachmentName, Object object) throws IOException {
+    public TransportResponse executeCreateAttachment(String database, String docId, String docRev, String attachmentName, Object object) throws IOException {
         ensureDatabase(database);
         ensureDocumentId(docId);
         ensureDocumentRev(docRev);
         ensureAttachmentName(attachmentName);
-        RestConnection connection = newConnectionBuilder(database, docId, attachmentName)
+        return execute(newUploadRequestBuilder(database, docId, attachmentName)
             .param(REVISION_PARAM, docRev)
-            .build();
-        return connection.put(object);
+            .put(object));
     }
 
-    public RestResponse executeBulkUpdate(String database, Object object) throws IOException {
+    public TransportResponse executeBulkUpdate(String database, Object object) throws IOException {
         ensureDatabase(database);
-		RestConnection connection = createConnection(database, BULK_DOCS_PATH);
+		TransportRequest.Builder builder = newUploadRequestBuilder(database, BULK_DOCS_PATH);
         if (object instanceof List<?>) {
             DocumentBulkRequest request = new DocumentBulkRequest();
             request.setDocs((List<?>) object);
-        	return connection.post(request);
+        	return execute(builder.post(request));
         } else {
-        	return connection.post(object);
+        	return execute(builder.post(object));
         }
     }
 
-    public RestResponse executeViewQuery(String database, ViewQuery query) throws IOException {
+    public TransportResponse executeBulkUpdate(String database, Iterator<?> documents) throws IOException {
+        ensureDatabase(database);
+        BulkDocsInputStream in = new BulkDocsInputStream(documents, getParserOrDefault());
+        return execute(newUploadRequestBuilder(database, BULK_DOCS_PATH)
+            .post(new ContentInputStream(in, HttpUrlConnectionTransport.CONTENT_TYPE_JSON, -1)));
+    }
+
+    public TransportResponse executeViewQuery(String database, ViewQuery query) throws IOException {
+        return executeViewQuery(database, query, false);
+    }
+
+    private TransportResponse executeViewQuery(String database, ViewQuery query, boolean coalescable) throws IOException {
+        return executeViewQuery(database, query, query.buildQuery(), null, coalescable);
+    }
+
+    private TransportResponse executeViewQuery(String database, ViewQuery query, String viewPath, String etag, boolean coalescable) throws IOException {
+        return executeViewQuery(database, viewPath, query.hasMultipleKeys() ? query.getKeysAsJson() : null, etag, coalescable);
+    }
+
+    private TransportResponse executeViewQuery(String database, String viewPath, String keysJson, String etag, boolean coalescable) throws IOException {
         ensureDatabase(database);
-		RestConnection connection = createConnection(database + query.buildQuery());
-        if (query.hasMultipleKeys()) {
-        	return connection.post(query.getKeysAsJson());
+		TransportRequest.Builder builder = newStreamingRequestBuilder(database + viewPath)
+		    .hedgeable(true)
+		    .coalescable(coalescable)
+		    .readOnly(true);
+        if (etag != null) {
+            builder.header(HttpUrlConnectionTransport.HEADER_IF_NONE_MATCH, etag);
+        }
+        if (keysJson != null) {
+        	return execute(builder.post(keysJson));
         } else {
-        	return connection.get();
+        	return execute(builder.get());
         }
     }
 
-    public RestResponse executeChangesQuery(String database, ChangesQuery query) throws IOException {
+    private ViewResult queryCachedView(ViewCache viewCache, String database, ViewQuery query) throws IOException {
+        String key = ViewCache.getKey(database, query);
+        ViewCache.Entry cached = viewCache.get(key);
+        if (!mTransport.isSendingHeaders()) {
+            // If-None-Match isn't sent, so compare update sequences using the same query stripped of its rows
+            if (cached != null) {
+                TransportResponse response = executeViewQuery(database, query, query.buildQuery(UPDATE_SEQ_ONLY_PARAMS), null, true);
+                if (cached.getResult().getUpdateSeq().equals(new ViewResult(query, response).getUpdateSeq())) {
+                    return viewCache.validated(cached);
+                }
+            }
+            TransportResponse response = executeViewQuery(database, query, query.buildQuery(UPDATE_SEQ_PARAMS), null, true);
+            return viewCache.put(key, query, response, false);
+        }
+        String etag = cached == null ? null : cached.getETag();
+        TransportResponse response = executeViewQuery(database, query, query.buildQuery(), etag, true);
+        if (etag != null && response.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            response.close();
+            return viewCache.validated(cached);
+        }
+        return viewCache.put(key, query, response, true);
+    }
+
+    private boolean isChunked(ViewQuery query) {
+        return isChunkable(query) && query.hasMultipleKeys() && query.getKeysValues().size() > mKeysChunkSize;
+    }
+
+    private boolean isChunkable(ViewQuery query) {
+        // A limit or skip applies to the whole result, so those queries can't be split
+        return mKeysChunkSize > 0 && query.getLimit() < 0 && query.getSkip() <= 0;
+    }
+
+    public TransportResponse executeChangesQuery(String database, ChangesQuery query) throws IOException {
         ensureDatabase(database);
-		RestConnection connection = createConnection(database + query.buildQuery());
-    	return connection.get();
+    	return execute(newStreamingRequestBuilder(database + query.buildQuery()).get());
     }
     
-    private RestConnection createConnection(String... paths) throws IOException {
-        return newConnectionBuilder(paths).build();
+    private TransportResponse execute(TransportRequest request) throws IOException {
+        return mTransport.execute(request);
     }
     
-    private RestConnection.Builder newConnectionBuilder(String... paths) throws IOException {
-    	return new RestConnection.Builder()
-            .properties(mProperties)
+    private TransportRequest.Builder newRequestBuilder(String... paths) {
+    	return new TransportRequest.Builder(paths)
             .parser(mParser)
             .maxRetryAttempts(mMaxRetryAttempts)
             .retryOnIOException(mRetryOnIOException)
-            .backOffPolicy(mBackOffPolicy)
-            .path(RestUtils.toPath(paths));
+            .backOffPolicy(mBackOffPolicy);
+    }
+    
+    private TransportRequest.Builder newUploadRequestBuilder(String... paths) {
+        return newRequestBuilder(paths).gzipThreshold(mGzipRequestThreshold);
+    }
+    
+    private TransportRequest.Builder newStreamingRequestBuilder(String... paths) {
+        TransportRequest.Builder builder = newRequestBuilder(paths);
+        if (mGzipResponses) {
+            builder.header(HttpUrlConnectionTransport.HEADER_ACCEPT_ENCODING, HttpUrlConnectionTransport.ENCODING_GZIP);
+        }
+        return builder;
     }
     
     private void ensureDatabase(String database) throws IOException {
@@ -469,6 +862,26 @@ public class CouchDbClient {
         private int mMaxRetryAttempts = RestConnection.DEFAULT_MAX_RETRY_ATTEMPTS;
         private boolean mRetryOnIOException;
         private BackOffPolicy mBackOffPolicy;
+        private boolean mGzipResponses;
+        private int mGzipRequestThreshold = TransportRequest.NO_COMPRESSION;
+        private ConnectionPool mConnectionPool;
+        private Transport mTransport;
+        private List<String> mNodeUrls;
+        private int mWriteNodeIndex = ClusterTransport.NO_WRITE_NODE;
+        private long mProbeIntervalMillis = ClusterTransport.DEFAULT_PROBE_INTERVAL_MILLIS;
+        private RetryBudget mRetryBudget;
+        private boolean mCircuitBreakers;
+        private int mFailureThreshold = CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+        private long mOpenMillis = CircuitBreaker.DEFAULT_OPEN_MILLIS;
+        private int mHalfOpenProbes = CircuitBreaker.DEFAULT_HALF_OPEN_PROBES;
+        private boolean mHedgedReads;
+        private double mHedgePercentile = HedgingTransport.DEFAULT_PERCENTILE;
+        private double mMaxHedgeRatio = HedgingTransport.DEFAULT_MAX_HEDGE_RATIO;
+        private boolean mCoalesceReads;
+        private DocumentCache mDocumentCache;
+        private ViewCache mViewCache;
+        private int mKeysChunkSize = DEFAULT_KEYS_CHUNK_SIZE;
+        private int mKeysParallelism = DEFAULT_KEYS_PARALLELISM;
         private RestProperties.Builder mPropertiesBuilder = new RestProperties.Builder();
 
         
@@ -492,6 +905,89 @@ public class CouchDbClient {
             return this;    
         }
         
+        public Builder gzipResponses(boolean gzipResponses) {
+            mGzipResponses = gzipResponses;
+            return this;    
+        }
+        
+        public Builder gzipRequestThreshold(int gzipRequestThreshold) {
+            mGzipRequestThreshold = gzipRequestThreshold;
+            return this;    
+        }
+        
+        public Builder connectionPool(ConnectionPool connectionPool) {
+            mConnectionPool = connectionPool;
+            return this;    
+        }
+        
+        public Builder transport(Transport transport) {
+            mTransport = transport;
+            return this;    
+        }
+        
+        public Builder nodeUrls(String... nodeUrls) {
+            mNodeUrls = Arrays.asList(nodeUrls);
+            return this;    
+        }
+        
+        public Builder writeNodeUrl(String writeNodeUrl) {
+            if (mNodeUrls == null || !mNodeUrls.contains(writeNodeUrl)) {
+                throw new IllegalArgumentException("The write node must be one of the node urls.");
+            }
+            mWriteNodeIndex = mNodeUrls.indexOf(writeNodeUrl);
+            return this;    
+        }
+        
+        public Builder probeIntervalMillis(long probeIntervalMillis) {
+            mProbeIntervalMillis = probeIntervalMillis;
+            return this;    
+        }
+        
+        public Builder retryBudget(RetryBudget retryBudget) {
+            mRetryBudget = retryBudget;
+            return this;    
+        }
+        
+        public Builder circuitBreakers(int failureThreshold, long openMillis, int halfOpenProbes) {
+            mCircuitBreakers = true;
+            mFailureThreshold = failureThreshold;
+            mOpenMillis = openMillis;
+            mHalfOpenProbes = halfOpenProbes;
+            return this;    
+        }
+        
+        public Builder hedgedReads(double percentile, double maxHedgeRatio) {
+            mHedgedReads = true;
+            mHedgePercentile = percentile;
+            mMaxHedgeRatio = maxHedgeRatio;
+            return this;    
+        }
+        
+        public Builder coalesceReads(boolean coalesceReads) {
+            mCoalesceReads = coalesceReads;
+            return this;    
+        }
+        
+        public Builder documentCache(DocumentCache documentCache) {
+            mDocumentCache = documentCache;
+            return this;    
+        }
+        
+        public Builder viewCache(ViewCache viewCache) {
+            mViewCache = viewCache;
+            return this;    
+        }
+        
+        public Builder keysChunkSize(int keysChunkSize) {
+            mKeysChunkSize = keysChunkSize;
+            return this;    
+        }
+        
+        public Builder keysParallelism(int keysParallelism) {
+            mKeysParallelism = keysParallelism;
+            return this;    
+        }
+        
         public Builder url(String url) {
             mPropertiesBuilder.url(url);
             return this;    
@@ -541,13 +1037,48 @@ public class CouchDbClient {
         }
         
         public CouchDbClient build() {
-            RestProperties properties = mPropertiesBuilder.build();
-        	CouchDbClient client = new CouchDbClient(properties);
+        	ConnectionPool connectionPool = mConnectionPool == null ? new ConnectionPool() : mConnectionPool;
+        	Transport transport = mTransport;
+        	if (transport == null && mNodeUrls != null) {
+        	    List<Transport> nodes = new ArrayList<>();
+        	    for (String nodeUrl : mNodeUrls) {
+        	        nodes.add(newTransport(mPropertiesBuilder.url(nodeUrl).build(), connectionPool));
+        	    }
+        	    transport = new ClusterTransport(nodes, mWriteNodeIndex, mProbeIntervalMillis);
+        	} else if (transport == null) {
+        	    RestProperties properties = mPropertiesBuilder.build();
+        	    transport = newTransport(properties, connectionPool);
+        	}
+        	if (mRetryBudget != null || mCircuitBreakers) {
+        	    RetryBudget retryBudget = mRetryBudget == null ? new RetryBudget() : mRetryBudget;
+        	    transport = new CircuitBreakerTransport(transport, retryBudget, mFailureThreshold, mOpenMillis, mHalfOpenProbes);
+        	}
+        	if (mHedgedReads) {
+        	    transport = new HedgingTransport(transport, mHedgePercentile, mMaxHedgeRatio, HedgingTransport.DEFAULT_MIN_DELAY_MILLIS);
+        	}
+        	if (mCoalesceReads) {
+        	    transport = new CoalescingTransport(transport);
+        	}
+        	CouchDbClient client = new CouchDbClient(transport);
         	client.mParser = mParser;
         	client.mMaxRetryAttempts = mMaxRetryAttempts;
         	client.mBackOffPolicy = mBackOffPolicy;
         	client.mRetryOnIOException = mRetryOnIOException;
+        	client.setGzipResponses(mGzipResponses);
+        	client.setGzipRequestThreshold(mGzipRequestThreshold);
+        	client.mDocumentCache = mDocumentCache;
+        	client.mViewCache = mViewCache;
+        	client.mKeysChunkSize = mKeysChunkSize;
+        	client.mKeysParallelism = mKeysParallelism;
         	return client;
         }
+
+        private Transport newTransport(RestProperties properties, ConnectionPool connectionPool) {
+            // Compression and revalidation need a transport that sends request headers and hedging one that can be cancelled
+            if (mGzipResponses || mGzipRequestThreshold != TransportRequest.NO_COMPRESSION || mDocumentCache != null || mHedgedReads) {
+                return new HttpUrlConnectionTransport(properties, connectionPool);
+            }
+            return new RestConnectionTransport(properties, connectionPool);
+        }
     }
 }
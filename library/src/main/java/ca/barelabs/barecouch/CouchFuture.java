@@ -0,0 +1,157 @@
+package ca.barelabs.barecouch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link Future} that is completed explicitly and notifies registered callbacks once a result,
+ * failure or cancellation is available.
+ */
+public class CouchFuture<V> implements Future<V> {
+
+    private final CountDownLatch mDoneLatch = new CountDownLatch(1);
+    private final List<Callback<? super V>> mCallbacks = new ArrayList<>();
+    private Future<?> mTask;
+    private V mResult;
+    private Throwable mFailure;
+    private boolean mCancelled;
+    private boolean mDone;
+
+
+    public boolean complete(V result) {
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mResult = result;
+            mDone = true;
+        }
+        finish();
+        return true;
+    }
+
+    public boolean fail(Throwable failure) {
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mFailure = failure;
+            mDone = true;
+        }
+        finish();
+        return true;
+    }
+
+    public void addCallback(Callback<? super V> callback) {
+        synchronized (this) {
+            if (!mDone) {
+                mCallbacks.add(callback);
+                return;
+            }
+        }
+        notifyCallback(callback);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Future<?> task;
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mCancelled = true;
+            mDone = true;
+            task = mTask;
+        }
+        if (task != null) {
+            task.cancel(mayInterruptIfRunning);
+        }
+        finish();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        mDoneLatch.await();
+        return getResult();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDoneLatch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    void setTask(Future<?> task) {
+        boolean cancelled;
+        synchronized (this) {
+            mTask = task;
+            cancelled = mCancelled;
+        }
+        if (cancelled) {
+            task.cancel(true);
+        }
+    }
+
+    private synchronized V getResult() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        if (mFailure != null) {
+            throw new ExecutionException(mFailure);
+        }
+        return mResult;
+    }
+
+    private void finish() {
+        List<Callback<? super V>> callbacks;
+        synchronized (this) {
+            callbacks = new ArrayList<>(mCallbacks);
+            mCallbacks.clear();
+        }
+        mDoneLatch.countDown();
+        for (Callback<? super V> callback : callbacks) {
+            notifyCallback(callback);
+        }
+    }
+
+    private void notifyCallback(Callback<? super V> callback) {
+        V result;
+        Throwable failure;
+        synchronized (this) {
+            result = mResult;
+            failure = mCancelled ? new CancellationException() : mFailure;
+        }
+        if (failure == null) {
+            callback.onSuccess(result);
+        } else {
+            callback.onFailure(failure);
+        }
+    }
+
+
+    public interface Callback<V> {
+
+        void onSuccess(V result);
+
+        void onFailure(Throwable failure);
+    }
+}
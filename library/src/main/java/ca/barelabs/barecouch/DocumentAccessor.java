@@ -0,0 +1,17 @@
+package ca.barelabs.barecouch;
+
+/**
+ * Reads and writes the id and revision of a type of document, registered with
+ * {@link DocumentUtils#registerAccessor(Class, DocumentAccessor)} to replace the default accessor, which looks for
+ * getId/setId and getRev/setRev methods or id and rev fields.
+ */
+public interface DocumentAccessor<D> {
+
+    String getId(D document);
+
+    void setId(D document, String id);
+
+    String getRev(D document);
+
+    void setRev(D document, String rev);
+}
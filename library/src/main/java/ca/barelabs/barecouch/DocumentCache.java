@@ -0,0 +1,152 @@
+package ca.barelabs.barecouch;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded least recently used cache of document bodies keyed by database and id, validated against the
+ * document's ETag. The body is kept rather than the parsed document so every read parses a fresh object which
+ * callers are free to modify. Entries are dropped beyond the entry or byte limits, and after the optional time to live.
+ */
+public class DocumentCache {
+
+    public static final long NO_TTL = -1;
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private final int mMaxEntries;
+    private final long mMaxBytes;
+    private final long mTtlNanos;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mBytes;
+    private long mHitCount;
+    private long mMissCount;
+    private long mRevalidationCount;
+    private long mEvictionCount;
+
+
+    public DocumentCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, NO_TTL);
+    }
+
+    public DocumentCache(int maxEntries, long maxBytes, long ttlMillis) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache limits must be positive.");
+        }
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+        mTtlNanos = ttlMillis == NO_TTL ? NO_TTL : TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Returns the cached response to revalidate with its ETag, or null when the document isn't cached.
+     */
+    public synchronized BufferedTransportResponse get(String database, String docId) {
+        String key = getKey(database, docId);
+        Entry entry = mEntries.get(key);
+        if (entry != null && mTtlNanos != NO_TTL && System.nanoTime() - entry.mCreatedNanos > mTtlNanos) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            return null;
+        }
+        mRevalidationCount++;
+        return entry.mResponse;
+    }
+
+    /**
+     * Records that the server confirmed the cached document is still current and returns a copy to parse.
+     */
+    public synchronized BufferedTransportResponse notModified(BufferedTransportResponse cached) {
+        mHitCount++;
+        return cached.copy();
+    }
+
+    /**
+     * Buffers a fresh response, caching it when the server sent an ETag, and returns a copy to parse.
+     */
+    public BufferedTransportResponse put(String database, String docId, TransportResponse response) throws IOException {
+        BufferedTransportResponse buffered = BufferedTransportResponse.buffer(response);
+        synchronized (this) {
+            mMissCount++;
+            String key = getKey(database, docId);
+            remove(key);
+            if (buffered.getHeaderField(CouchDbClient.ETAG_FIELD) != null && buffered.getBodyLength() <= mMaxBytes) {
+                mEntries.put(key, new Entry(buffered));
+                mBytes += buffered.getBodyLength();
+                evict();
+            }
+        }
+        return buffered.copy();
+    }
+
+    public synchronized void remove(String database, String docId) {
+        remove(getKey(database, docId));
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    public synchronized int getSize() {
+        return mEntries.size();
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getRevalidationCount() {
+        return mRevalidationCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    private void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mBytes -= entry.mResponse.getBodyLength();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while ((mEntries.size() > mMaxEntries || mBytes > mMaxBytes) && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            iterator.remove();
+            mBytes -= entry.mResponse.getBodyLength();
+            mEvictionCount++;
+        }
+    }
+
+    private static String getKey(String database, String docId) {
+        return database + '/' + docId;
+    }
+
+
+    private static class Entry {
+
+        private final BufferedTransportResponse mResponse;
+        private final long mCreatedNanos = System.nanoTime();
+
+
+        Entry(BufferedTransportResponse response) {
+            mResponse = response;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package ca.barelabs.barecouch;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.barelabs.barecouch.FetchedDocument.Status;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Fetches many documents by id with _all_docs key requests, include_docs=true, instead of one request per
+ * document. Ids are split into chunks which are fetched in parallel, and documents are returned in the order of
+ * the ids with a status for each, so a missing or deleted document is explicit.
+ */
+public class DocumentFetcher {
+
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final String ERROR_NOT_FOUND = "not_found";
+    public static final String FIELD_REV = "rev";
+    public static final String FIELD_DELETED = "deleted";
+
+    private final CouchDbClient mClient;
+    private final int mChunkSize;
+    private final int mParallelism;
+
+
+    public DocumentFetcher(CouchDbClient client) {
+        this(client, DEFAULT_CHUNK_SIZE, DEFAULT_PARALLELISM);
+    }
+
+    public DocumentFetcher(CouchDbClient client, int chunkSize, int parallelism) {
+        if (chunkSize <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("Chunk size and parallelism must be positive.");
+        }
+        mClient = client;
+        mChunkSize = chunkSize;
+        mParallelism = parallelism;
+    }
+
+    public <D> List<FetchedDocument<D>> getAll(final String database, Collection<String> ids, final Class<D> documentClss) throws IOException {
+        List<List<String>> chunks = new ArrayList<>();
+        Iterator<String> iterator = ids.iterator();
+        while (iterator.hasNext()) {
+            chunks.add(nextChunk(iterator));
+        }
+        List<FetchedDocument<D>> documents = new ArrayList<>(ids.size());
+        if (chunks.size() <= 1 || mParallelism == 1) {
+            for (List<String> chunk : chunks) {
+                documents.addAll(fetchChunk(database, chunk, documentClss));
+            }
+            return documents;
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(mParallelism, chunks.size()), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "barecouch-fetch-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<List<FetchedDocument<D>>>> futures = new ArrayList<>(chunks.size());
+            for (final List<String> chunk : chunks) {
+                futures.add(executor.submit(new Callable<List<FetchedDocument<D>>>() {
+                    @Override
+                    public List<FetchedDocument<D>> call() throws IOException {
+                        return fetchChunk(database, chunk, documentClss);
+                    }
+                }));
+            }
+            for (Future<List<FetchedDocument<D>>> future : futures) {
+                documents.addAll(future.get());
+            }
+            return documents;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching documents.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Fetches one chunk at a time as the returned iterator is read, so any number of ids can be fetched with
+     * only a chunk of documents in memory. Failures are thrown from the iterator as {@link DatabaseAccessException}.
+     */
+    public <D> Iterator<FetchedDocument<D>> iterateAll(final String database, final Iterator<String> ids, final Class<D> documentClss) {
+        return new Iterator<FetchedDocument<D>>() {
+
+            private Iterator<FetchedDocument<D>> mChunk;
+
+            @Override
+            public boolean hasNext() {
+                while ((mChunk == null || !mChunk.hasNext()) && ids.hasNext()) {
+                    try {
+                        mChunk = fetchChunk(database, nextChunk(ids), documentClss).iterator();
+                    } catch (IOException e) {
+                        throw new DatabaseAccessException(e);
+                    }
+                }
+                return mChunk != null && mChunk.hasNext();
+            }
+
+            @Override
+            public FetchedDocument<D> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("Attempt to iterate beyond the result set.");
+                }
+                return mChunk.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private List<String> nextChunk(Iterator<String> ids) {
+        List<String> chunk = new ArrayList<>(mChunkSize);
+        while (chunk.size() < mChunkSize && ids.hasNext()) {
+            chunk.add(ids.next());
+        }
+        return chunk;
+    }
+
+    private <D> List<FetchedDocument<D>> fetchChunk(String database, List<String> ids, Class<D> documentClss) throws IOException {
+        ViewQuery query = new ViewQuery().allDocs(true).includeDocs(true);
+        // Chunks are already sized and run in parallel here, so each is sent as is rather than chunked again
+        List<ViewResult.Row> rows = mClient.queryView(database, query, ids).getRows();
+        if (rows.size() != ids.size()) {
+            throw new IOException("Expected " + ids.size() + " rows but received " + rows.size() + ".");
+        }
+        List<FetchedDocument<D>> documents = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            // Rows come back in the order of the keys, one for each key
+            documents.add(toFetchedDocument(ids.get(i), rows.get(i), documentClss));
+        }
+        return documents;
+    }
+
+    private static <D> FetchedDocument<D> toFetchedDocument(String id, ViewResult.Row row, Class<D> documentClss) throws IOException {
+        JsonElement error = row.getErrorAsJsonElement();
+        if (error != null && !error.isJsonNull()) {
+            String message = error.getAsString();
+            return new FetchedDocument<>(id, ERROR_NOT_FOUND.equals(message) ? Status.NOT_FOUND : Status.ERROR, null, null, message);
+        }
+        JsonElement value = row.getValueAsJsonElement();
+        String rev = null;
+        boolean deleted = false;
+        if (value != null && value.isJsonObject()) {
+            JsonObject object = value.getAsJsonObject();
+            rev = object.has(FIELD_REV) ? object.get(FIELD_REV).getAsString() : null;
+            deleted = object.has(FIELD_DELETED) && object.get(FIELD_DELETED).getAsBoolean();
+        }
+        if (deleted) {
+            return new FetchedDocument<>(id, Status.DELETED, rev, null, null);
+        }
+        return new FetchedDocument<>(id, Status.FOUND, rev, row.getDocAsObject(documentClss), null);
+    }
+}
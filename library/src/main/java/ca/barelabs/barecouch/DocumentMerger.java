@@ -0,0 +1,16 @@
+package ca.barelabs.barecouch;
+
+/**
+ * Applies a change to the current version of a document, see
+ * {@link CouchDbClient#updateWithRetry(String, String, Class, DocumentMerger)}.
+ */
+public interface DocumentMerger<D> {
+
+    /**
+     * Returns the document to save, which may be the current one modified, or null to leave the document as it is.
+     * May be called several times when other writers keep updating the document.
+     *
+     * @param current the latest version of the document, or null when it doesn't exist
+     */
+    D merge(D current);
+}
@@ -1,9 +1,13 @@
 package ca.barelabs.barecouch;
 
 import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DocumentUtils {
 
@@ -13,102 +17,203 @@ public class DocumentUtils {
 	public static final String REV_FIELD = "rev";
 	public static final String REV_GET_METHOD = "getRev";
 	public static final String REV_SET_METHOD = "setRev";
+
+	private static final Map<Class<?>, DocumentAccessor<?>> REGISTERED_ACCESSORS = new ConcurrentHashMap<>();
+	// Looking up methods and fields is done once per class rather than on every call
+	private static final ClassValue<DocumentAccessor<Object>> ACCESSORS = new ClassValue<DocumentAccessor<Object>>() {
+		@Override
+		protected DocumentAccessor<Object> computeValue(Class<?> type) {
+			DocumentAccessor<Object> accessor = findRegisteredAccessor(type);
+			return accessor == null ? new ReflectiveAccessor(type) : accessor;
+		}
+	};
+
+	/**
+	 * Use the accessor for documents of the type and its subtypes. Register accessors before documents of the type
+	 * are first used, the accessor chosen for a subtype isn't changed afterwards.
+	 */
+	public static <D> void registerAccessor(Class<D> type, DocumentAccessor<? super D> accessor) {
+		REGISTERED_ACCESSORS.put(type, accessor);
+		ACCESSORS.remove(type);
+	}
 	
 	public static String getId(Object document) {
 		if (isDocumentValid(document)) {
-			String docId = callGetMethod(document, ID_GET_METHOD);
-			return docId == null ? getFieldValue(document, ID_FIELD) : docId;
+			return getAccessor(document).getId(document);
 		}
 		return null;
 	}
 	
 	public static void setId(Object document, String id) {
-		if (isDocumentValid(document) && !callSetMethod(document, ID_SET_METHOD, id)) {
-			setFieldValue(document, ID_FIELD, id);
+		if (isDocumentValid(document)) {
+			getAccessor(document).setId(document, id);
 		}
 	}
 	
 	public static String getRev(Object document) {
 		if (isDocumentValid(document)) {
-			String docRev = callGetMethod(document, REV_GET_METHOD);
-			return docRev == null ? getFieldValue(document, REV_FIELD) : docRev;
+			return getAccessor(document).getRev(document);
 		}
 		return null;
 	}
 	
 	public static void setRev(Object document, String rev) {
-		if (isDocumentValid(document) && !callSetMethod(document, REV_SET_METHOD, rev)) {
-			setFieldValue(document, REV_FIELD, rev);
+		if (isDocumentValid(document)) {
+			getAccessor(document).setRev(document, rev);
 		}
 	}
-	
-	private static String callGetMethod(Object document, String methodName) {
-		try {
-			Method method = document.getClass().getMethod(methodName);
-			if (method != null) {
-				Object value = method.invoke(document);
-				if (value instanceof String) {
-					return (String) value;
-				}
+
+	private static DocumentAccessor<Object> getAccessor(Object document) {
+		return ACCESSORS.get(document.getClass());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static DocumentAccessor<Object> findRegisteredAccessor(Class<?> type) {
+		for (Class<?> clss = type; clss != null; clss = clss.getSuperclass()) {
+			DocumentAccessor<?> accessor = REGISTERED_ACCESSORS.get(clss);
+			if (accessor != null) {
+				return (DocumentAccessor<Object>) accessor;
+			}
+		}
+		for (Map.Entry<Class<?>, DocumentAccessor<?>> entry : REGISTERED_ACCESSORS.entrySet()) {
+			if (entry.getKey().isAssignableFrom(type)) {
+				return (DocumentAccessor<Object>) entry.getValue();
 			}
-		} catch (NoSuchMethodException e) {
-		} catch (SecurityException e) {
-		} catch (IllegalAccessException e) {
-		} catch (IllegalArgumentException e) {
-		} catch (InvocationTargetException e) {
 		}
 		return null;
 	}
 	
-	private static boolean callSetMethod(Object document, String methodName, String value) {
-		try {
-			Method method = document.getClass().getMethod(methodName, String.class);
-			if (method != null) {
-				method.invoke(document, value);
-				return true;
+	private static boolean isDocumentValid(Object document) {
+		return document != null && !(document instanceof InputStream);
+	}
+
+
+	/**
+	 * Prefers public getter and setter methods and falls back to accessible fields, resolved to method handles once.
+	 * The field is also used when a getter returns null or a setter throws.
+	 */
+	private static class ReflectiveAccessor implements DocumentAccessor<Object> {
+
+		// Checks access as reflection called from this class would
+		private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+		private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+		private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, String.class);
+
+		private final MethodHandle mIdGetMethod;
+		private final MethodHandle mIdGetField;
+		private final MethodHandle mIdSetMethod;
+		private final MethodHandle mIdSetField;
+		private final MethodHandle mRevGetMethod;
+		private final MethodHandle mRevGetField;
+		private final MethodHandle mRevSetMethod;
+		private final MethodHandle mRevSetField;
+
+
+		ReflectiveAccessor(Class<?> type) {
+			mIdGetMethod = findGetMethod(type, ID_GET_METHOD);
+			mIdGetField = findFieldGetter(type, ID_FIELD);
+			mIdSetMethod = findSetMethod(type, ID_SET_METHOD);
+			mIdSetField = findFieldSetter(type, ID_FIELD);
+			mRevGetMethod = findGetMethod(type, REV_GET_METHOD);
+			mRevGetField = findFieldGetter(type, REV_FIELD);
+			mRevSetMethod = findSetMethod(type, REV_SET_METHOD);
+			mRevSetField = findFieldSetter(type, REV_FIELD);
+		}
+
+		@Override
+		public String getId(Object document) {
+			String docId = get(mIdGetMethod, document);
+			return docId == null ? get(mIdGetField, document) : docId;
+		}
+
+		@Override
+		public void setId(Object document, String id) {
+			if (!set(mIdSetMethod, document, id)) {
+				set(mIdSetField, document, id);
 			}
-		} catch (NoSuchMethodException e) {
-		} catch (SecurityException e) {
-		} catch (IllegalAccessException e) {
-		} catch (IllegalArgumentException e) {
-		} catch (InvocationTargetException e) {
 		}
-		return false;
-	}
-	
-	private static String getFieldValue(Object document, String fieldName) {
-		try {
-			Field field = document.getClass().getDeclaredField(fieldName);
-			if (field != null && String.class.isAssignableFrom(field.getType())) {
-				Object value = field.get(document);
-				if (value instanceof String) {
-					return (String) value;
+
+		@Override
+		public String getRev(Object document) {
+			String docRev = get(mRevGetMethod, document);
+			return docRev == null ? get(mRevGetField, document) : docRev;
+		}
+
+		@Override
+		public void setRev(Object document, String rev) {
+			if (!set(mRevSetMethod, document, rev)) {
+				set(mRevSetField, document, rev);
+			}
+		}
+
+		private static String get(MethodHandle getter, Object document) {
+			if (getter != null) {
+				try {
+					Object value = getter.invokeExact(document);
+					if (value instanceof String) {
+						return (String) value;
+					}
+				} catch (Error e) {
+					throw e;
+				} catch (Throwable e) {
+					// The getter threw, a runtime exception or a checked one it declares
 				}
 			}
-		} catch (NoSuchFieldException e) {
-		} catch (SecurityException e) {
-		} catch (IllegalArgumentException e) {
-		} catch (IllegalAccessException e) {
+			return null;
 		}
-		return null;
-	}
-	
-	private static boolean setFieldValue(Object document, String fieldName, String value) {
-		try {
-			Field field = document.getClass().getDeclaredField(fieldName);
-			if (field != null && String.class.isAssignableFrom(field.getType())) {
-				field.set(document, value);
-				return true;
+
+		private static boolean set(MethodHandle setter, Object document, String value) {
+			if (setter != null) {
+				try {
+					setter.invokeExact(document, value);
+					return true;
+				} catch (Error e) {
+					throw e;
+				} catch (Throwable e) {
+					// The setter threw, a runtime exception or a checked one it declares
+				}
 			}
-		} catch (NoSuchFieldException e) {
-		} catch (SecurityException e) {
-		} catch (IllegalArgumentException e) {
-		} catch (IllegalAccessException e) {
+			return false;
+		}
+
+		private static MethodHandle findGetMethod(Class<?> type, String methodName) {
+			try {
+				Method method = type.getMethod(methodName);
+				return LOOKUP.unreflect(method).asType(GETTER_TYPE);
+			} catch (NoSuchMethodException | SecurityException | IllegalAccessException e) {
+				return null;
+			}
+		}
+
+		private static MethodHandle findSetMethod(Class<?> type, String methodName) {
+			try {
+				Method method = type.getMethod(methodName, String.class);
+				return LOOKUP.unreflect(method).asType(SETTER_TYPE);
+			} catch (NoSuchMethodException | SecurityException | IllegalAccessException e) {
+				return null;
+			}
+		}
+
+		private static MethodHandle findFieldGetter(Class<?> type, String fieldName) {
+			try {
+				Field field = type.getDeclaredField(fieldName);
+				if (String.class.isAssignableFrom(field.getType())) {
+					return LOOKUP.unreflectGetter(field).asType(GETTER_TYPE);
+				}
+			} catch (NoSuchFieldException | SecurityException | IllegalAccessException e) {
+			}
+			return null;
+		}
+
+		private static MethodHandle findFieldSetter(Class<?> type, String fieldName) {
+			try {
+				Field field = type.getDeclaredField(fieldName);
+				if (String.class.isAssignableFrom(field.getType())) {
+					return LOOKUP.unreflectSetter(field).asType(SETTER_TYPE);
+				}
+			} catch (NoSuchFieldException | SecurityException | IllegalAccessException e) {
+			}
+			return null;
 		}
-		return false;
-	}
-	
-	private static boolean isDocumentValid(Object document) {
-		return document != null && !(document instanceof InputStream);
 	}
 }
@@ -0,0 +1,61 @@
+package ca.barelabs.barecouch;
+
+/**
+ * One document of a multi-document fetch, which says whether the document was found rather than leaving it null.
+ */
+public class FetchedDocument<D> {
+
+    public enum Status {
+        FOUND, NOT_FOUND, DELETED, ERROR
+    }
+
+    private final String mId;
+    private final Status mStatus;
+    private final String mRev;
+    private final D mDocument;
+    private final String mError;
+
+
+    FetchedDocument(String id, Status status, String rev, D document, String error) {
+        mId = id;
+        mStatus = status;
+        mRev = rev;
+        mDocument = document;
+        mError = error;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public Status getStatus() {
+        return mStatus;
+    }
+
+    public boolean isFound() {
+        return mStatus == Status.FOUND;
+    }
+
+    /**
+     * The current revision of a found document, or the deleting revision of a deleted one.
+     */
+    public String getRev() {
+        return mRev;
+    }
+
+    /**
+     * The document when it was found, null otherwise.
+     */
+    public D getDocument() {
+        return mDocument;
+    }
+
+    public String getError() {
+        return mError;
+    }
+
+    @Override
+    public String toString() {
+        return mId + " " + mStatus;
+    }
+}
@@ -0,0 +1,313 @@
+package ca.barelabs.barecouch;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.barelabs.bareconnection.IOUtils;
+
+/**
+ * Wraps a {@link Transport} and hedges {@link TransportRequest#isHedgeable() hedgeable} reads. The first attempt runs
+ * on the caller's thread; when it hasn't answered within a percentile of recently observed latencies an identical
+ * request is sent from another thread and whichever answers first wins. The losing attempt is aborted through its
+ * {@link Cancellation}, which disconnects it on transports that support that, like {@link HttpUrlConnectionTransport}.
+ * On other transports the loser runs to the end and its response is closed when it arrives, and the caller can't
+ * return before its own attempt does. Hedges are capped to a ratio of hedgeable requests.
+ */
+public class HedgingTransport implements Transport {
+
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final double DEFAULT_MAX_HEDGE_RATIO = 0.05;
+    public static final long DEFAULT_MIN_DELAY_MILLIS = 5;
+    public static final int LATENCY_SAMPLES = 512;
+    public static final int MIN_LATENCY_SAMPLES = 32;
+
+    private final Transport mTransport;
+    private final double mPercentile;
+    private final long mMinDelayNanos;
+    private final RetryBudget mHedgeBudget;
+    private final ExecutorService mExecutor;
+    private final ScheduledExecutorService mScheduler;
+    private final long[] mLatencies = new long[LATENCY_SAMPLES];
+    private final AtomicLong mHedgeCount = new AtomicLong();
+    private final AtomicLong mHedgeWins = new AtomicLong();
+    private int mLatencyCount;
+    private int mLatencyIndex;
+    private volatile long mDelayNanos;
+
+
+    public HedgingTransport(Transport transport) {
+        this(transport, DEFAULT_PERCENTILE, DEFAULT_MAX_HEDGE_RATIO, DEFAULT_MIN_DELAY_MILLIS);
+    }
+
+    public HedgingTransport(Transport transport, double percentile, double maxHedgeRatio, long minDelayMillis) {
+        if (percentile <= 0 || percentile >= 1 || maxHedgeRatio < 0 || minDelayMillis < 0) {
+            throw new IllegalArgumentException("Percentile must be in (0, 1) and hedge ratio and delay can't be negative.");
+        }
+        mTransport = transport;
+        mPercentile = percentile;
+        mMinDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        // Hedges draw from their own budget, separate from any retries
+        mHedgeBudget = new RetryBudget(maxHedgeRatio, 0, RetryBudget.DEFAULT_WINDOW_SECONDS);
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "barecouch-hedge-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        mExecutor = Executors.newCachedThreadPool(threadFactory);
+        mScheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * The delay after which a hedge is sent, or 0 while too few latencies have been observed to hedge.
+     */
+    public long getHedgeDelayMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mDelayNanos);
+    }
+
+    public long getHedgeCount() {
+        return mHedgeCount.get();
+    }
+
+    public long getHedgeWins() {
+        return mHedgeWins.get();
+    }
+
+    public RetryBudget getHedgeBudget() {
+        return mHedgeBudget;
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        if (!request.isHedgeable()) {
+            return mTransport.execute(request);
+        }
+        mHedgeBudget.recordRequest();
+        long delayNanos = mDelayNanos;
+        long start = System.nanoTime();
+        if (delayNanos <= 0) {
+            TransportResponse response = mTransport.execute(request);
+            recordLatency(System.nanoTime() - start);
+            return response;
+        }
+        Race race = new Race(request);
+        ScheduledFuture<?> hedge = mScheduler.schedule(race, delayNanos, TimeUnit.NANOSECONDS);
+        TransportResponse response;
+        try {
+            response = mTransport.execute(request.withCancellation(race.mPrimaryCancellation));
+        } catch (TransportException e) {
+            // A client error is still an answer from the server and wins the race like a response
+            if (e.getStatusCode() < HttpURLConnection.HTTP_INTERNAL_ERROR && race.claim(hedge)) {
+                throw e;
+            }
+            return race.awaitHedge(hedge, e);
+        } catch (IOException e) {
+            return race.awaitHedge(hedge, e);
+        } catch (RuntimeException | Error e) {
+            race.claim(hedge);
+            throw e;
+        }
+        recordLatency(System.nanoTime() - start);
+        if (race.claim(hedge)) {
+            return response;
+        }
+        // The hedge answered first
+        response.close();
+        return race.awaitHedge(hedge, null);
+    }
+
+    @Override
+    public boolean isSendingHeaders() {
+        return mTransport.isSendingHeaders();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mScheduler.shutdownNow();
+        mExecutor.shutdownNow();
+        mTransport.close();
+    }
+
+    private synchronized void recordLatency(long latencyNanos) {
+        mLatencies[mLatencyIndex] = latencyNanos;
+        mLatencyIndex = (mLatencyIndex + 1) % mLatencies.length;
+        mLatencyCount++;
+        if (mLatencyCount >= MIN_LATENCY_SAMPLES && mLatencyCount % MIN_LATENCY_SAMPLES == 0) {
+            // Sorting on every response is too costly so the percentile is refreshed periodically
+            long[] sorted = Arrays.copyOf(mLatencies, Math.min(mLatencyCount, mLatencies.length));
+            Arrays.sort(sorted);
+            long percentile = sorted[(int) Math.min(sorted.length - 1, Math.round(mPercentile * sorted.length))];
+            mDelayNanos = Math.max(mMinDelayNanos, percentile);
+        }
+    }
+
+
+    /**
+     * The attempts of one request. The primary attempt runs on the caller's thread and the hedge, once its delay
+     * has passed, on the executor. Whichever answers first claims the race and cancels the other.
+     */
+    private class Race implements Runnable {
+
+        private final TransportRequest mRequest;
+        private final Cancellation mPrimaryCancellation = new Cancellation();
+        private final Cancellation mHedgeCancellation = new Cancellation();
+        private final AtomicBoolean mAnswered = new AtomicBoolean();
+        private final AtomicBoolean mHedgeStarted = new AtomicBoolean();
+        private final BlockingQueue<Outcome> mOutcomes = new LinkedBlockingQueue<>();
+        private volatile boolean mAbandoned;
+
+
+        Race(TransportRequest request) {
+            mRequest = request;
+        }
+
+        /**
+         * Starts the hedge once the delay has passed, a started hedge always leaves exactly one outcome.
+         */
+        @Override
+        public void run() {
+            if (!mHedgeStarted.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        hedge();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Closed while waiting
+                offer(new Outcome(null, null, false));
+            }
+        }
+
+        /**
+         * Claims the answer for the primary attempt and cancels the hedge, returns false when the hedge already won.
+         */
+        boolean claim(ScheduledFuture<?> hedge) {
+            if (!mAnswered.compareAndSet(false, true)) {
+                return false;
+            }
+            hedge.cancel(false);
+            mHedgeCancellation.cancel();
+            return true;
+        }
+
+        TransportResponse awaitHedge(ScheduledFuture<?> hedge, IOException failure) throws IOException {
+            // A cancelled future may still be running, so settle whether the hedge starts with a flag
+            if (mHedgeStarted.compareAndSet(false, true)) {
+                hedge.cancel(false);
+                throw failure;
+            }
+            Outcome outcome;
+            try {
+                outcome = mOutcomes.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mAnswered.set(true);
+                mHedgeCancellation.cancel();
+                mAbandoned = true;
+                closeOutcomes();
+                throw new InterruptedIOException("Interrupted while waiting for a response.");
+            }
+            if (outcome.mAnswer) {
+                return outcome.getResponse();
+            }
+            throw failure == null ? outcome.mFailure : failure;
+        }
+
+        private void hedge() {
+            if (mAnswered.get() || !mHedgeBudget.tryRetry()) {
+                offer(new Outcome(null, null, false));
+                return;
+            }
+            mHedgeCount.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                TransportResponse response = mTransport.execute(mRequest.withCancellation(mHedgeCancellation));
+                recordLatency(System.nanoTime() - start);
+                if (mAnswered.compareAndSet(false, true)) {
+                    mHedgeWins.incrementAndGet();
+                    mPrimaryCancellation.cancel();
+                    offer(new Outcome(response, null, true));
+                } else {
+                    // Lost the race, release the connection for someone else
+                    response.close();
+                    offer(new Outcome(null, null, false));
+                }
+            } catch (TransportException e) {
+                boolean answer = e.getStatusCode() < HttpURLConnection.HTTP_INTERNAL_ERROR && mAnswered.compareAndSet(false, true);
+                if (answer) {
+                    mPrimaryCancellation.cancel();
+                }
+                offer(new Outcome(null, e, answer));
+            } catch (IOException e) {
+                offer(new Outcome(null, e, false));
+            } catch (RuntimeException e) {
+                offer(new Outcome(null, new IOException(e), false));
+            }
+        }
+
+        private void offer(Outcome outcome) {
+            mOutcomes.add(outcome);
+            if (mAbandoned) {
+                // The caller gave up waiting, so nobody else will close a late response
+                closeOutcomes();
+            }
+        }
+
+        private void closeOutcomes() {
+            Outcome outcome;
+            while ((outcome = mOutcomes.poll()) != null) {
+                if (outcome.mResponse != null) {
+                    IOUtils.closeQuietly(outcome.mResponse);
+                }
+            }
+        }
+    }
+
+
+    private static class Outcome {
+
+        private final TransportResponse mResponse;
+        private final IOException mFailure;
+        private final boolean mAnswer;
+
+
+        Outcome(TransportResponse response, IOException failure, boolean answer) {
+            mResponse = response;
+            mFailure = failure;
+            mAnswer = answer;
+        }
+
+        TransportResponse getResponse() throws IOException {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            return mResponse;
+        }
+    }
+}
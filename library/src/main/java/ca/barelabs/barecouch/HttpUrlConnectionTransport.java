@@ -0,0 +1,532 @@
+package ca.barelabs.barecouch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import ca.barelabs.bareconnection.BackOffPolicy;
+import ca.barelabs.bareconnection.ContentInputStream;
+import ca.barelabs.bareconnection.GsonParser;
+import ca.barelabs.bareconnection.IOUtils;
+import ca.barelabs.bareconnection.ObjectParser;
+import ca.barelabs.bareconnection.RestConnection;
+import ca.barelabs.bareconnection.RestProperties;
+import ca.barelabs.bareconnection.RestUtils;
+
+import com.google.gson.Gson;
+
+/**
+ * A {@link Transport} built directly on {@link HttpURLConnection} which sends request headers and
+ * gives full control over request and response bodies. Failed requests are retried after the delays of the
+ * request's {@link BackOffPolicy}, or with a doubling delay when it has none. Bodies are written and read
+ * with the request's {@link ObjectParser}.
+ */
+public class HttpUrlConnectionTransport implements Transport {
+
+    public static final String HEADER_ACCEPT = "Accept";
+    public static final String HEADER_AUTHORIZATION = "Authorization";
+    public static final String HEADER_CONTENT_TYPE = "Content-Type";
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    public static final String ENCODING_GZIP = "gzip";
+    public static final String CONTENT_TYPE_JSON = "application/json";
+    public static final String CONTENT_TYPE_OCTET_STREAM = "application/octet-stream";
+    public static final String CHARSET_PARAM = "charset=";
+    public static final long RETRY_DELAY_MILLIS = 100;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_DELAY_SHIFT = 20;
+    private static final String BASE64_CLASS = "java.util.Base64";
+    private static final String BASE64_ENCODER_METHOD = "getEncoder";
+    private static final String BASE64_ENCODE_METHOD = "encodeToString";
+    private static final String DATATYPE_CONVERTER_CLASS = "javax.xml.bind.DatatypeConverter";
+    private static final String DATATYPE_CONVERTER_METHOD = "printBase64Binary";
+
+    private final RestProperties mProperties;
+    private final ConnectionPool mConnectionPool;
+    private final String mDestination;
+    private final Gson mGson;
+    private final String mAuthorization;
+
+
+    public HttpUrlConnectionTransport(RestProperties properties) {
+        this(properties, new ConnectionPool());
+    }
+
+    public HttpUrlConnectionTransport(RestProperties properties, ConnectionPool connectionPool) {
+        this(properties, connectionPool, new Gson());
+    }
+
+    /**
+     * Provide your own Gson to use for requests that don't carry an {@link ObjectParser}.
+     */
+    public HttpUrlConnectionTransport(RestProperties properties, ConnectionPool connectionPool, Gson gson) {
+        mProperties = properties;
+        mConnectionPool = connectionPool;
+        mDestination = ConnectionPool.getDestination(properties.getUrl());
+        mGson = gson;
+        mAuthorization = properties.getUsername() == null ? null
+            : "Basic " + toBase64(properties.getUsername() + ":" + (properties.getPassword() == null ? "" : properties.getPassword()));
+    }
+
+    public RestProperties getProperties() {
+        return mProperties;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return mConnectionPool;
+    }
+
+    public Gson getGson() {
+        return mGson;
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        BackOffPolicy backOffPolicy = request.getBackOffPolicy();
+        if (backOffPolicy != null) {
+            backOffPolicy.reset();
+        }
+        int attempt = 0;
+        while (true) {
+            try {
+                return executeOnce(request);
+            } catch (IOException e) {
+                if (request.isCancelled() || !isRetryable(request, e, attempt)) {
+                    throw e;
+                }
+                long delay = backOffPolicy == null ? RETRY_DELAY_MILLIS << Math.min(attempt, MAX_DELAY_SHIFT) : backOffPolicy.getNextBackOffMillis();
+                if (delay == BackOffPolicy.STOP) {
+                    throw e;
+                }
+                sleep(delay);
+            }
+            attempt++;
+        }
+    }
+
+    @Override
+    public boolean isSendingHeaders() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    protected HttpURLConnection openConnection(TransportRequest request) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(buildUrl(request)).openConnection();
+        connection.setRequestMethod(request.getMethod());
+        connection.setConnectTimeout(mProperties.getConnectTimeout());
+        connection.setReadTimeout(mProperties.getReadTimeout());
+        connection.setRequestProperty(HEADER_ACCEPT, CONTENT_TYPE_JSON);
+        if (mAuthorization != null) {
+            connection.setRequestProperty(HEADER_AUTHORIZATION, mAuthorization);
+        }
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        return connection;
+    }
+
+    protected void writeBody(HttpURLConnection connection, TransportRequest request) throws IOException {
+        Object body = request.getBody();
+        connection.setDoOutput(true);
+        int bufferLimit;
+        if (body instanceof InputStream) {
+            if (request.getHeader(HEADER_CONTENT_TYPE) == null) {
+                String contentType = body instanceof ContentInputStream ? ((ContentInputStream) body).getContentType() : null;
+                connection.setRequestProperty(HEADER_CONTENT_TYPE, contentType == null ? CONTENT_TYPE_OCTET_STREAM : contentType);
+            }
+            bufferLimit = 0;
+        } else {
+            if (request.getHeader(HEADER_CONTENT_TYPE) == null) {
+                connection.setRequestProperty(HEADER_CONTENT_TYPE, CONTENT_TYPE_JSON);
+            }
+            bufferLimit = Integer.MAX_VALUE;
+        }
+        boolean gzip = request.getGzipThreshold() != TransportRequest.NO_COMPRESSION;
+        OutputStream out = new BodyOutputStream(connection, gzip ? request.getGzipThreshold() : bufferLimit, gzip);
+        try {
+            if (body instanceof InputStream) {
+                copy((InputStream) body, out);
+            } else if (body instanceof String) {
+                out.write(((String) body).getBytes(RestConnection.DEFAULT_CHARSET));
+            } else if (request.getParser() != null) {
+                out.write(request.getParser().toJson(body).getBytes(RestConnection.DEFAULT_CHARSET));
+            } else {
+                Writer writer = new OutputStreamWriter(out, RestConnection.DEFAULT_CHARSET);
+                mGson.toJson(body, writer);
+                writer.flush();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private TransportResponse executeOnce(TransportRequest request) throws IOException {
+        ConnectionPool.Permit permit = mConnectionPool.acquire(mDestination);
+        final HttpURLConnection connection;
+        int statusCode;
+        try {
+            connection = openConnection(request);
+        } catch (IOException | RuntimeException e) {
+            permit.release();
+            throw e;
+        }
+        if (request.getCancellation() != null) {
+            request.getCancellation().attach(new Closeable() {
+                @Override
+                public void close() {
+                    connection.disconnect();
+                }
+            });
+        }
+        try {
+            if (request.hasBody()) {
+                writeBody(connection, request);
+            } else {
+                connection.connect();
+            }
+            // Disconnecting does nothing before the connection is made, so check for a cancel that came too early
+            if (request.isCancelled()) {
+                throw new IOException();
+            }
+            statusCode = connection.getResponseCode();
+        } catch (IOException | RuntimeException e) {
+            connection.disconnect();
+            permit.release();
+            if (request.isCancelled()) {
+                // Disconnecting from another thread can fail the request in odd ways
+                throw new IOException("Request was cancelled.", e);
+            }
+            throw e;
+        } finally {
+            if (request.getCancellation() != null) {
+                // Once answered the connection may go back to the keep-alive cache, so it must not be disconnected
+                request.getCancellation().detach();
+            }
+        }
+        if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            try {
+                // Reading the whole error body lets the connection be reused
+                throw new TransportException(statusCode, readError(connection));
+            } finally {
+                permit.release();
+            }
+        }
+        ObjectParser parser = request.getParser() == null ? new GsonParser(mGson) : request.getParser();
+        return new HttpUrlTransportResponse(connection, statusCode, parser, permit);
+    }
+
+    private String buildUrl(TransportRequest request) throws IOException {
+        StringBuilder sb = new StringBuilder(trimSeparators(mProperties.getUrl()));
+        appendPath(sb, mProperties.getPath());
+        for (String path : request.getPaths()) {
+            appendPath(sb, path);
+        }
+        if (!request.getParams().isEmpty()) {
+            sb.append(sb.indexOf("?") == -1 ? '?' : '&').append(RestUtils.toQuery(request.getParams(), RestConnection.DEFAULT_CHARSET));
+        }
+        return sb.toString();
+    }
+
+    private boolean isRetryable(TransportRequest request, IOException e, int attempt) {
+        if (attempt >= request.getMaxRetryAttempts() || request.getBody() instanceof InputStream) {
+            return false;
+        }
+        if (e instanceof TransportException) {
+            int statusCode = ((TransportException) e).getStatusCode();
+            BackOffPolicy backOffPolicy = request.getBackOffPolicy();
+            return backOffPolicy == null ? statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR : backOffPolicy.isBackOffRequired(statusCode);
+        }
+        return request.isRetryOnIOException();
+    }
+
+    private static String readError(HttpURLConnection connection) {
+        InputStream in = connection.getErrorStream();
+        if (in == null) {
+            return null;
+        }
+        try {
+            if (ENCODING_GZIP.equalsIgnoreCase(connection.getContentEncoding())) {
+                in = new GZIPInputStream(in);
+            }
+            return readFully(new InputStreamReader(in, getCharset(connection.getContentType())));
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static void appendPath(StringBuilder sb, String path) {
+        String trimmed = trimSeparators(path);
+        if (!trimmed.isEmpty()) {
+            sb.append(RestConnection.PATH_SEPARATOR).append(trimmed);
+        }
+    }
+
+    private static String trimSeparators(String path) {
+        if (path == null) {
+            return "";
+        }
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.startsWith(RestConnection.PATH_SEPARATOR, start)) {
+            start++;
+        }
+        while (end > start && path.startsWith(RestConnection.PATH_SEPARATOR, end - 1)) {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static String readFully(Reader reader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[BUFFER_SIZE];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            sb.append(buffer, 0, read);
+        }
+        return sb.toString();
+    }
+
+    private static String getCharset(String contentType) {
+        int index = contentType == null ? -1 : contentType.toLowerCase().indexOf(CHARSET_PARAM);
+        if (index != -1) {
+            String charset = contentType.substring(index + CHARSET_PARAM.length()).split(";")[0].trim();
+            if (Charset.isSupported(charset)) {
+                return charset;
+            }
+        }
+        return RestConnection.DEFAULT_CHARSET;
+    }
+
+    /**
+     * Encodes with the platform's encoder, java.util.Base64 from Java 8 or the JAXB converter on Java 7.
+     */
+    private static String toBase64(String value) {
+        byte[] bytes = value.getBytes(Charset.forName(RestConnection.DEFAULT_CHARSET));
+        try {
+            Object encoder = Class.forName(BASE64_CLASS).getMethod(BASE64_ENCODER_METHOD).invoke(null);
+            return (String) encoder.getClass().getMethod(BASE64_ENCODE_METHOD, byte[].class).invoke(encoder, bytes);
+        } catch (Exception e) {
+            // Not available before Java 8
+        }
+        try {
+            return (String) Class.forName(DATATYPE_CONVERTER_CLASS).getMethod(DATATYPE_CONVERTER_METHOD, byte[].class).invoke(null, bytes);
+        } catch (Exception e) {
+            throw new IllegalStateException("No Base64 encoder is available for basic authentication.", e);
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to retry request.", e);
+        }
+    }
+
+
+    /**
+     * Holds the body in memory until it grows past the buffer limit. Smaller bodies are sent with a fixed length
+     * and are never compressed, larger ones switch to chunked streaming and are compressed on the way out.
+     */
+    private static class BodyOutputStream extends OutputStream {
+
+        private final HttpURLConnection mConnection;
+        private final int mBufferLimit;
+        private final boolean mGzip;
+        private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+        private OutputStream mOut;
+
+
+        BodyOutputStream(HttpURLConnection connection, int bufferLimit, boolean gzip) {
+            mConnection = connection;
+            mBufferLimit = bufferLimit;
+            mGzip = gzip;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mOut == null && (long) mBuffer.size() + len > mBufferLimit) {
+                openStream();
+            }
+            if (mOut == null) {
+                mBuffer.write(b, off, len);
+            } else {
+                mOut.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mOut != null) {
+                mOut.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mOut == null) {
+                byte[] bytes = mBuffer.toByteArray();
+                mConnection.setFixedLengthStreamingMode(bytes.length);
+                mOut = mConnection.getOutputStream();
+                mOut.write(bytes);
+            }
+            mOut.close();
+        }
+
+        private void openStream() throws IOException {
+            if (mGzip) {
+                mConnection.setRequestProperty(HEADER_CONTENT_ENCODING, ENCODING_GZIP);
+            }
+            mConnection.setChunkedStreamingMode(0);
+            OutputStream out = mConnection.getOutputStream();
+            mOut = mGzip ? new GZIPOutputStream(out, BUFFER_SIZE) : out;
+            mBuffer.writeTo(mOut);
+            mBuffer = null;
+        }
+    }
+
+
+    private class HttpUrlTransportResponse implements TransportResponse {
+
+        private final HttpURLConnection mConnection;
+        private final int mStatusCode;
+        private final ObjectParser mParser;
+        private final ConnectionPool.Permit mPermit;
+        private final AtomicBoolean mClosed = new AtomicBoolean();
+        private InputStream mContent;
+
+
+        HttpUrlTransportResponse(HttpURLConnection connection, int statusCode, ObjectParser parser, ConnectionPool.Permit permit) {
+            mConnection = connection;
+            mStatusCode = statusCode;
+            mParser = parser;
+            mPermit = permit;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public String getContentType() {
+            return mConnection.getContentType();
+        }
+
+        @Override
+        public int getContentLength() {
+            return mConnection.getContentLength();
+        }
+
+        @Override
+        public String getIncomingCharset() {
+            return getCharset(getContentType());
+        }
+
+        @Override
+        public ObjectParser getParser() {
+            return mParser;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new ResponseInputStream(openContent(), this);
+        }
+
+        private InputStream openContent() throws IOException {
+            if (mContent == null) {
+                InputStream in = mConnection.getInputStream();
+                // Decompress as the body is read so callers only ever see plain JSON
+                mContent = ENCODING_GZIP.equalsIgnoreCase(mConnection.getContentEncoding()) ? new GZIPInputStream(in) : in;
+            }
+            return mContent;
+        }
+
+        @Override
+        public String parse() throws IOException {
+            if (TransportRequest.METHOD_HEAD.equals(mConnection.getRequestMethod())) {
+                close();
+                return "";
+            }
+            try {
+                return readFully(new InputStreamReader(openContent(), getIncomingCharset()));
+            } finally {
+                // The body has been read to the end so this only returns the connection
+                close();
+            }
+        }
+
+        @Override
+        public <T> T parseAs(Class<T> clss) throws IOException {
+            String content = parse();
+            return mParser.parse(content, clss);
+        }
+
+        @Override
+        public <T> T parseAs(Type type) throws IOException {
+            return mParser.parse(parse(), type);
+        }
+
+        @Override
+        public void close() {
+            if (!mClosed.compareAndSet(false, true)) {
+                return;
+            }
+            InputStream content = null;
+            try {
+                content = openContent();
+            } catch (IOException e) {
+                // Released below by dropping the connection
+            }
+            mConnectionPool.release(this, content);
+            mPermit.release();
+        }
+
+        @Override
+        public void disconnect() {
+            mClosed.set(true);
+            mConnection.disconnect();
+            mPermit.release();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package ca.barelabs.barecouch;
+
+import java.io.IOException;
+
+import ca.barelabs.bareconnection.GsonParser;
+import ca.barelabs.bareconnection.ObjectParser;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Binds values straight from a {@link JsonReader} with a {@link TypeAdapter}, without building a tree or string first.
+ */
+final class JsonBinding {
+
+    static final Gson DEFAULT_GSON = new Gson();
+
+
+    private JsonBinding() {
+    }
+
+    /**
+     * Binds values like the parser does, so type adapters and naming policies set on the client are honoured.
+     * A {@link GsonParser}, or no parser which means a plain Gson, binds straight from the reader with the Gson's
+     * adapter for the class, which the Gson caches per type. Other parsers are handed each value as a string read
+     * into a tree first, which is slower.
+     */
+    static <T> Binder<T> getBinder(final ObjectParser parser, final Class<T> clss) {
+        if (parser == null) {
+            return getBinder(DEFAULT_GSON.getAdapter(clss));
+        }
+        if (parser instanceof GsonParser) {
+            return getBinder(((GsonParser) parser).getGson().getAdapter(clss));
+        }
+        return new Binder<T>() {
+            private final JsonParser mJsonParser = new JsonParser();
+
+            @Override
+            public T read(JsonReader in) throws IOException {
+                return fromJsonTree(mJsonParser.parse(in));
+            }
+
+            @Override
+            public T fromJsonTree(JsonElement tree) throws IOException {
+                return parser.parse(tree.toString(), clss);
+            }
+        };
+    }
+
+    static <T> Binder<T> getBinder(final TypeAdapter<T> adapter) {
+        return new Binder<T>() {
+            @Override
+            public T read(JsonReader in) throws IOException {
+                return adapter.read(in);
+            }
+
+            @Override
+            public T fromJsonTree(JsonElement tree) {
+                return adapter.fromJsonTree(tree);
+            }
+        };
+    }
+
+    /**
+     * Reads the next object and binds one of its fields, skipping the others.
+     */
+    static <T> T readField(JsonReader jsonReader, String field, Binder<T> binder) throws IOException {
+        return readField(jsonReader, field, binder, null);
+    }
+
+    /**
+     * Like {@link #readField(JsonReader, String, Binder)} but when there's a projection the field is read
+     * through it and bound from the projected tree.
+     */
+    static <T> T readField(JsonReader jsonReader, String field, Binder<T> binder, Projection projection) throws IOException {
+        T value = null;
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            if (!jsonReader.nextName().equals(field)) {
+                jsonReader.skipValue();
+            } else if (jsonReader.peek() == JsonToken.NULL) {
+                jsonReader.nextNull();
+            } else if (projection != null) {
+                value = binder.fromJsonTree(projection.read(jsonReader));
+            } else {
+                value = binder.read(jsonReader);
+            }
+        }
+        jsonReader.endObject();
+        return value;
+    }
+
+
+    /**
+     * Reads values of one type, either from the reader or from a tree already read.
+     */
+    interface Binder<T> {
+
+        T read(JsonReader in) throws IOException;
+
+        T fromJsonTree(JsonElement tree) throws IOException;
+    }
+}
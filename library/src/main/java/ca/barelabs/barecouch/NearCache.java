@@ -0,0 +1,274 @@
+package ca.barelabs.barecouch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import ca.barelabs.bareconnection.RestConnection;
+
+/**
+ * Serves documents of one database from memory, evicting them as the database's changes feed reports them changed.
+ * Unlike {@link DocumentCache} a hit makes no request at all, so a read can be stale by as much as the feed lags
+ * behind the server. While the feed is disconnected reads pass through to the client, and once it reconnects the
+ * missed changes are replayed before the cache is served from again.
+ */
+public class NearCache implements Closeable {
+
+    public static final String FEED_LONGPOLL = "longpoll";
+    public static final String FEED_NORMAL = "normal";
+    public static final String SINCE_NOW = "now";
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final int DEFAULT_POLL_TIMEOUT_MILLIS = 10000;
+    public static final long RECONNECT_DELAY_MILLIS = 1000;
+    public static final long MAX_RECONNECT_DELAY_MILLIS = 30000;
+
+    private final CouchDbClient mClient;
+    private final String mDatabase;
+    private final int mMaxEntries;
+    private final int mPollTimeoutMillis;
+    private final LinkedHashMap<String, BufferedTransportResponse> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Load> mLoads = new HashMap<>();
+    private final Thread mFeedThread;
+    private volatile boolean mClosed;
+    private volatile boolean mConnected;
+    private volatile boolean mPolling;
+    private volatile long mCaughtUpNanos = System.nanoTime();
+    private volatile String mLastSeq;
+    private volatile StreamingChangesResult mFeed;
+    private long mHitCount;
+    private long mMissCount;
+    private long mPassThroughCount;
+    private long mInvalidationCount;
+
+
+    public NearCache(CouchDbClient client, String database) {
+        this(client, database, DEFAULT_MAX_ENTRIES, DEFAULT_POLL_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param pollTimeoutMillis how long each long poll of the changes feed waits for a change, must be
+     *     shorter than the transport's read timeout
+     */
+    public NearCache(CouchDbClient client, String database, int maxEntries, int pollTimeoutMillis) {
+        if (maxEntries <= 0 || pollTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Maximum entries and poll timeout must be positive.");
+        }
+        mClient = client;
+        mDatabase = database;
+        mMaxEntries = maxEntries;
+        mPollTimeoutMillis = pollTimeoutMillis;
+        mFeedThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                followFeed();
+            }
+        }, "barecouch-near-cache-" + database);
+        mFeedThread.setDaemon(true);
+        mFeedThread.start();
+    }
+
+    public String getDatabase() {
+        return mDatabase;
+    }
+
+    /**
+     * True while the changes feed is connected and caught up, reads are passed through to the client otherwise.
+     */
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * How far behind the server the cache may be. This is 0 while a long poll is waiting for changes, the time
+     * since the feed last caught up while changes are being applied, and keeps growing while disconnected.
+     */
+    public long getLagMillis() {
+        if (mConnected && mPolling) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mCaughtUpNanos);
+    }
+
+    public String getLastSeq() {
+        return mLastSeq;
+    }
+
+    public <D> D get(String docId, Class<D> documentClss) throws IOException {
+        try {
+            return find(docId, documentClss);
+        } catch (TransportException e) {
+            // CouchDb returns a 404 Not Found if database doesn't contain document
+            if (e.getStatusCode() == RestConnection.SC_NOT_FOUND) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    public <D> D find(String docId, Class<D> documentClss) throws IOException {
+        Load load;
+        synchronized (this) {
+            if (!mConnected) {
+                mPassThroughCount++;
+                load = null;
+            } else {
+                BufferedTransportResponse cached = mEntries.get(docId);
+                if (cached != null) {
+                    mHitCount++;
+                    return cached.copy().parseAs(documentClss);
+                }
+                mMissCount++;
+                load = new Load();
+                mLoads.put(docId, load);
+            }
+        }
+        if (load == null) {
+            return mClient.executeDocumentGet(mDatabase, docId).parseAs(documentClss);
+        }
+        BufferedTransportResponse response;
+        try {
+            response = BufferedTransportResponse.buffer(mClient.executeDocumentGet(mDatabase, docId));
+        } finally {
+            synchronized (this) {
+                if (mLoads.get(docId) == load) {
+                    mLoads.remove(docId);
+                } else {
+                    // A newer read of the same document will cache it instead
+                    load.mStale = true;
+                }
+            }
+        }
+        synchronized (this) {
+            if (!load.mStale && mConnected) {
+                mEntries.put(docId, response);
+                evict();
+            }
+        }
+        return response.copy().parseAs(documentClss);
+    }
+
+    public synchronized void remove(String docId) {
+        mEntries.remove(docId);
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized int getSize() {
+        return mEntries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getPassThroughCount() {
+        return mPassThroughCount;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return mInvalidationCount;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mConnected = false;
+        mFeedThread.interrupt();
+        StreamingChangesResult feed = mFeed;
+        if (feed != null) {
+            feed.close();
+        }
+    }
+
+    private void followFeed() {
+        long reconnectDelay = RECONNECT_DELAY_MILLIS;
+        while (!mClosed) {
+            try {
+                poll();
+                reconnectDelay = RECONNECT_DELAY_MILLIS;
+            } catch (IOException | RuntimeException e) {
+                if (mClosed) {
+                    return;
+                }
+                // Changes may be missed until the feed is back, so stop trusting the cache until they are replayed
+                mConnected = false;
+                mPolling = false;
+                try {
+                    Thread.sleep(reconnectDelay);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MILLIS);
+            }
+        }
+    }
+
+    private void poll() throws IOException {
+        boolean catchingUp = !mConnected;
+        ChangesQuery query = new ChangesQuery();
+        if (mLastSeq == null) {
+            // Nothing is cached yet so only the current sequence is needed
+            query.feed(FEED_NORMAL).since(SINCE_NOW);
+        } else if (catchingUp) {
+            query.feed(FEED_NORMAL).since(mLastSeq);
+        } else {
+            query.feed(FEED_LONGPOLL).since(mLastSeq).timeout(mPollTimeoutMillis);
+        }
+        StreamingChangesResult feed = mClient.queryForStreamingChanges(mDatabase, query);
+        mFeed = feed;
+        try {
+            mPolling = !catchingUp;
+            Iterator<ChangesResult.DocumentChange> changes = feed.iterator();
+            boolean polling = mPolling;
+            while (changes.hasNext()) {
+                if (polling) {
+                    // The long poll returned so the cache lags until the changes are applied
+                    mCaughtUpNanos = System.nanoTime();
+                    mPolling = polling = false;
+                }
+                invalidate(changes.next().getId());
+            }
+            mLastSeq = feed.getLastSeq();
+        } finally {
+            mPolling = false;
+            mFeed = null;
+            feed.close();
+        }
+        mCaughtUpNanos = System.nanoTime();
+        mConnected = true;
+    }
+
+    private synchronized void invalidate(String docId) {
+        mInvalidationCount++;
+        mEntries.remove(docId);
+        Load load = mLoads.get(docId);
+        if (load != null) {
+            // The read may have fetched the document before this change
+            load.mStale = true;
+        }
+    }
+
+    private void evict() {
+        Iterator<String> iterator = mEntries.keySet().iterator();
+        while (mEntries.size() > mMaxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+
+    private static class Load {
+
+        private boolean mStale;
+    }
+}
@@ -0,0 +1,235 @@
+package ca.barelabs.barecouch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import ca.barelabs.barecouch.ViewResult.Row;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Iterates over every row of a view one page at a time. Each page starts at the key and doc id of the row after
+ * the previous one, skipping only the rows before it with that same key and doc id, so no page costs more than its
+ * size the way skip does. The next page is fetched on a background thread while the caller works through the
+ * current one.
+ * <p>
+ * The query's limit caps the number of rows returned, counting from the cursor when resuming. Skip, key and multiple
+ * keys aren't supported. Failures are thrown from the iterator as {@link DatabaseAccessException}. Close the iterator
+ * when abandoning it early.
+ */
+public class PagedViewIterator implements Iterator<Row>, Closeable {
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private final CouchDbClient mClient;
+    private final String mDatabase;
+    private final ViewQuery mQuery;
+    private final int mPageSize;
+    private final ExecutorService mExecutor;
+    private Future<Page> mNextPage;
+    private long mRemaining;
+    private Page mPage;
+    private int mIndex;
+    private boolean mClosed;
+
+
+    public PagedViewIterator(CouchDbClient client, String database, ViewQuery query, int pageSize) {
+        this(client, database, query, pageSize, null);
+    }
+
+    /**
+     * Resumes from a cursor returned by {@link #getCursor()} of an iterator over the same query.
+     */
+    public PagedViewIterator(CouchDbClient client, String database, ViewQuery query, int pageSize, ViewCursor cursor) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive.");
+        }
+        if (query.hasMultipleKeys() || query.getKey() != null || query.getSkip() > 0 || query.getLimit() == 0) {
+            throw new IllegalArgumentException("Paging isn't supported for queries with a key, multiple keys, skip or a limit of 0.");
+        }
+        mClient = client;
+        mDatabase = database;
+        mQuery = query;
+        mPageSize = pageSize;
+        mRemaining = query.getLimit() >= 0 ? query.getLimit() : Long.MAX_VALUE;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "barecouch-view-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (cursor != null && cursor.isEnd()) {
+            mPage = new Page(cursor, null, ViewCursor.END);
+            mExecutor.shutdown();
+        } else {
+            mNextPage = fetch(cursor, mRemaining);
+        }
+    }
+
+    /**
+     * The position after the last row returned by {@link #next()}, from which a new iterator would continue.
+     */
+    public ViewCursor getCursor() {
+        if (mPage == null) {
+            mPage = awaitPage();
+        }
+        return mPage.getCursor(mIndex);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (mClosed) {
+            return false;
+        }
+        while (mPage == null || mIndex >= mPage.getSize()) {
+            if (mPage != null && (mPage.mNext.isEnd() || mRemaining == 0)) {
+                return false;
+            }
+            mPage = awaitPage();
+            mIndex = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public Row next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("Attempt to iterate beyond the result set.");
+        }
+        return mPage.mRows.get(mIndex++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        if (mNextPage != null) {
+            mNextPage.cancel(true);
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private Page awaitPage() {
+        Page page;
+        try {
+            page = mNextPage.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseAccessException(e);
+        } catch (ExecutionException e) {
+            throw new DatabaseAccessException(e.getCause());
+        }
+        mRemaining -= page.getSize();
+        if (page.mNext.isEnd() || mRemaining == 0) {
+            mNextPage = null;
+            mExecutor.shutdown();
+        } else {
+            // Fetch the following page while the caller reads this one
+            mNextPage = fetch(page.mNext, mRemaining);
+        }
+        return page;
+    }
+
+    private Future<Page> fetch(final ViewCursor cursor, final long remaining) {
+        return mExecutor.submit(new Callable<Page>() {
+            @Override
+            public Page call() throws IOException {
+                return fetchPage(cursor, remaining);
+            }
+        });
+    }
+
+    private Page fetchPage(ViewCursor cursor, long remaining) throws IOException {
+        int size = (int) Math.min(mPageSize, remaining);
+        Map<String, String> overrides = new HashMap<>();
+        // One extra row tells whether there is another page and where it starts
+        overrides.put(ViewQuery.PARAM_LIMIT, String.valueOf(size + 1));
+        if (cursor != null) {
+            overrides.put(ViewQuery.PARAM_STARTKEY, cursor.getStartKeyJson());
+            // Rows of reduced views have no id, and the query's own start doc id doesn't apply past its first key
+            overrides.put(ViewQuery.PARAM_STARTKEY_DOCID, cursor.getStartDocId());
+            if (cursor.getSkip() > 0) {
+                overrides.put(ViewQuery.PARAM_SKIP, String.valueOf(cursor.getSkip()));
+            }
+        }
+        List<Row> rows = mClient.queryView(mDatabase, mQuery, overrides).getRows();
+        if (rows.size() <= size) {
+            return new Page(cursor, rows, ViewCursor.END);
+        }
+        Page page = new Page(cursor, rows.subList(0, size), null);
+        page.mNext = page.toCursor(rows.get(size), size);
+        return page;
+    }
+
+    private static String getKeyJson(Row row) {
+        JsonElement key = row.getKeyAsJsonElement();
+        return key == null ? "null" : key.toString();
+    }
+
+    private static String getDocId(Row row) {
+        JsonElement id = row.getIdAsJsonElement();
+        return id == null || id.isJsonNull() ? null : id.getAsString();
+    }
+
+
+    private static class Page {
+
+        final ViewCursor mStart;
+        final List<Row> mRows;
+        ViewCursor mNext;
+
+
+        Page(ViewCursor start, List<Row> rows, ViewCursor next) {
+            mStart = start;
+            mRows = rows;
+            mNext = next;
+        }
+
+        int getSize() {
+            return mRows == null ? 0 : mRows.size();
+        }
+
+        ViewCursor getCursor(int index) {
+            return index < getSize() ? toCursor(mRows.get(index), index) : mNext;
+        }
+
+        /**
+         * The cursor of a row at the index, or just past the end of the page, counting the rows before it with the
+         * same key and doc id, here and on earlier pages.
+         */
+        ViewCursor toCursor(Row row, int index) {
+            String keyJson = getKeyJson(row);
+            String docId = getDocId(row);
+            int skip = 0;
+            while (index - skip > 0) {
+                Row previous = mRows.get(index - skip - 1);
+                if (!keyJson.equals(getKeyJson(previous)) || (docId == null ? getDocId(previous) != null : !docId.equals(getDocId(previous)))) {
+                    return new ViewCursor(keyJson, docId, skip);
+                }
+                skip++;
+            }
+            // Every row before it on this page is the same, so it carries on from where the page started
+            if (mStart != null && mStart.isAt(keyJson, docId)) {
+                skip += mStart.getSkip();
+            }
+            return new ViewCursor(keyJson, docId, skip);
+        }
+    }
+}
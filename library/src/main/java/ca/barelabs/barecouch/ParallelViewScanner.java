@@ -0,0 +1,268 @@
+package ca.barelabs.barecouch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ca.barelabs.barecouch.ViewResult.Row;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Scans a view, or _all_docs, with several concurrent streaming requests instead of one. The key range of the
+ * query is split into sub-ranges at boundary keys, either given or sampled from the view, and each sub-range
+ * is streamed and parsed on its own thread into a bounded buffer.
+ * <p>
+ * An unordered scan returns rows as soon as any sub-range produces them. An ordered scan returns them in the
+ * view's collation order; the sub-ranges are disjoint and contiguous, so this is the sub-ranges read one after
+ * the other while the later ones fill their buffers in the background. Boundaries follow the order of the
+ * query, so they must be descending for a descending query. The query can't use a single key, multiple keys,
+ * doc id bounds, skip or limit.
+ * <p>
+ * A reduced row covers a range of keys, which boundaries would cut through, so reduced views can only be split
+ * with group=true. Otherwise they must be queried with reduce=false, or scanned without boundaries.
+ */
+public class ParallelViewScanner {
+
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_BUFFER_SIZE = 1000;
+
+    private static final Object END = new Object();
+
+    private final CouchDbClient mClient;
+    private final String mDatabase;
+    private final int mParallelism;
+    private final int mBufferSize;
+
+
+    public ParallelViewScanner(CouchDbClient client, String database) {
+        this(client, database, DEFAULT_PARALLELISM, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ParallelViewScanner(CouchDbClient client, String database, int parallelism, int bufferSize) {
+        if (parallelism <= 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("Parallelism and buffer size must be positive.");
+        }
+        mClient = client;
+        mDatabase = database;
+        mParallelism = parallelism;
+        mBufferSize = bufferSize;
+    }
+
+    /**
+     * Samples keys which split the query's range into roughly equal sub-ranges. Each sample is a one row request
+     * with skip, which the server answers in time proportional to the skip, so it's worth giving boundaries
+     * instead when they are known. Reduced views have no row count to sample from, so they get no boundaries.
+     */
+    public List<JsonElement> sampleBoundaries(ViewQuery query, int partitions) throws IOException {
+        ensureScannable(query);
+        Map<String, String> overrides = new HashMap<>();
+        overrides.put(ViewQuery.PARAM_LIMIT, "0");
+        ViewResult counts = mClient.queryView(mDatabase, query, overrides);
+        // The offset counts the rows before the start of the range, and before its end when started at the end key
+        long end = counts.getTotalRows();
+        String endKey = query.getEndKeyJson();
+        if (endKey != null) {
+            Map<String, String> endOverrides = new HashMap<>(overrides);
+            endOverrides.put(ViewQuery.PARAM_STARTKEY, endKey);
+            endOverrides.put(ViewQuery.PARAM_ENDKEY, null);
+            end = mClient.queryView(mDatabase, query, endOverrides).getOffset();
+        }
+        long rows = end - counts.getOffset();
+        Set<String> seen = new LinkedHashSet<>();
+        List<JsonElement> boundaries = new ArrayList<>();
+        for (int i = 1; i < partitions && rows > 0; i++) {
+            overrides.put(ViewQuery.PARAM_LIMIT, "1");
+            overrides.put(ViewQuery.PARAM_SKIP, String.valueOf(rows * i / partitions));
+            List<Row> sample = mClient.queryView(mDatabase, query, overrides).getRows();
+            if (sample.isEmpty()) {
+                break;
+            }
+            JsonElement key = sample.get(0).getKeyAsJsonElement();
+            if (seen.add(key.toString())) {
+                boundaries.add(key);
+            }
+        }
+        return boundaries;
+    }
+
+    /**
+     * Scans with boundaries sampled to give a sub-range for each thread.
+     */
+    public Scan scan(ViewQuery query, boolean ordered) throws IOException {
+        return scan(query, sampleBoundaries(query, mParallelism), ordered);
+    }
+
+    /**
+     * Scans with sub-ranges split at the boundary keys, each of which starts the sub-range after it.
+     */
+    public Scan scan(ViewQuery query, List<?> boundaries, boolean ordered) {
+        ensureScannable(query);
+        List<Map<String, String>> ranges = new ArrayList<>(boundaries.size() + 1);
+        for (int i = 0; i <= boundaries.size(); i++) {
+            Map<String, String> overrides = new HashMap<>();
+            if (i > 0) {
+                overrides.put(ViewQuery.PARAM_STARTKEY, query.toJson(boundaries.get(i - 1)));
+            }
+            if (i < boundaries.size()) {
+                overrides.put(ViewQuery.PARAM_ENDKEY, query.toJson(boundaries.get(i)));
+                overrides.put(ViewQuery.PARAM_INCLUSIVE_END, String.valueOf(false));
+            }
+            ranges.add(overrides);
+        }
+        return new Scan(query, ranges, ordered);
+    }
+
+    private static void ensureScannable(ViewQuery query) {
+        if (query.getKey() != null || query.hasMultipleKeys() || query.getStartDocId() != null || query.getEndDocId() != null
+                || query.getSkip() > 0 || query.getLimit() >= 0) {
+            throw new IllegalArgumentException("Scans aren't supported for queries with keys, doc id bounds, skip or limit.");
+        }
+        if (query.isReduce() && query.getGroupLevel() >= 0 && !query.isGroup()) {
+            throw new IllegalArgumentException("Reduced views can only be split into ranges with group=true.");
+        }
+    }
+
+
+    /**
+     * The rows of a scan. Failures are thrown from the iterator as {@link DatabaseAccessException}, and the scan
+     * must be closed when abandoned early to stop its requests.
+     */
+    public class Scan implements Iterator<Row>, Closeable {
+
+        private final List<BlockingQueue<Object>> mQueues = new ArrayList<>();
+        private final AtomicReference<Throwable> mError = new AtomicReference<>();
+        private final ExecutorService mExecutor;
+        private final int mRangeCount;
+        private final boolean mOrdered;
+        private final boolean mCheckReduced;
+        private int mEnded;
+        private Row mNext;
+        private boolean mClosed;
+
+
+        Scan(final ViewQuery query, List<Map<String, String>> ranges, boolean ordered) {
+            // Reduced rows have no id; ungrouped they'd be reduced over each sub-range rather than the whole
+            mCheckReduced = ranges.size() > 1 && query.isReduce() && !query.isGroup() && !query.isAllDocs();
+            mRangeCount = ranges.size();
+            mOrdered = ordered;
+            final AtomicInteger threadCount = new AtomicInteger();
+            mExecutor = Executors.newFixedThreadPool(Math.min(mParallelism, mRangeCount), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "barecouch-scan-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            BlockingQueue<Object> shared = ordered ? null : new ArrayBlockingQueue<Object>(mBufferSize * mRangeCount);
+            for (final Map<String, String> overrides : ranges) {
+                final BlockingQueue<Object> queue = ordered ? new ArrayBlockingQueue<Object>(mBufferSize) : shared;
+                mQueues.add(queue);
+                // Ranges run in the order they are queued, so the one an ordered scan waits on is always running or next
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        streamRange(query, overrides, queue);
+                    }
+                });
+            }
+            mExecutor.shutdown();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (mNext == null && !mClosed && mEnded < mRangeCount) {
+                Object next;
+                try {
+                    next = mQueues.get(mOrdered ? mEnded : 0).take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new DatabaseAccessException(e);
+                }
+                if (next == END) {
+                    mEnded++;
+                    Throwable error = mError.get();
+                    if (error != null) {
+                        close();
+                        throw new DatabaseAccessException(error);
+                    }
+                } else {
+                    mNext = (Row) next;
+                }
+            }
+            return mNext != null;
+        }
+
+        @Override
+        public Row next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("Attempt to iterate beyond the result set.");
+            }
+            Row row = mNext;
+            mNext = null;
+            return row;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                mExecutor.shutdownNow();
+            }
+        }
+
+        private void streamRange(ViewQuery query, Map<String, String> overrides, BlockingQueue<Object> queue) {
+            boolean interrupted = false;
+            try {
+                StreamingViewResult result = mClient.queryForStreamingView(mDatabase, query, overrides);
+                try {
+                    Iterator<Row> rows = result.iterator();
+                    while (rows.hasNext()) {
+                        Row row = rows.next();
+                        if (mCheckReduced && row.getIdAsJsonElement() == null) {
+                            throw new IllegalArgumentException("Reduced views can only be split into ranges with group=true.");
+                        }
+                        queue.put(row);
+                    }
+                } finally {
+                    result.close();
+                }
+            } catch (InterruptedException e) {
+                // Closed, nobody is reading any more
+                interrupted = true;
+            } catch (IOException | RuntimeException | Error e) {
+                mError.compareAndSet(null, e);
+            } finally {
+                // Always end the range, even on an Error, so the reader isn't left waiting for it
+                if (!interrupted) {
+                    try {
+                        queue.put(END);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+    }
+}
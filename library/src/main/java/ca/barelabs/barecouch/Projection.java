@@ -0,0 +1,143 @@
+package ca.barelabs.barecouch;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * A set of dotted JSON paths to keep when decoding documents, such as "name" or "address.city". Everything else
+ * is skipped in the stream without being parsed into a tree. Paths into an array apply to each of its objects, and
+ * a document's _id, _rev and _deleted are always kept. Projected documents are partial and shouldn't be saved back.
+ */
+public class Projection {
+
+    public static final String PATH_SEPARATOR = ".";
+    private static final String[] ALWAYS_KEPT = { "_id", "_rev", "_deleted" };
+
+    private final Set<String> mPaths;
+    private final Node mRoot = new Node();
+    private final JsonParser mJsonParser = new JsonParser();
+
+
+    public Projection(Collection<String> paths) {
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("A projection needs at least one path.");
+        }
+        mPaths = Collections.unmodifiableSet(new LinkedHashSet<>(paths));
+        for (String path : mPaths) {
+            mRoot.add(path);
+        }
+        for (String path : ALWAYS_KEPT) {
+            mRoot.add(path);
+        }
+    }
+
+    public Set<String> getPaths() {
+        return mPaths;
+    }
+
+    /**
+     * Reads the next value, keeping only the projected paths when it's an object or an array of objects.
+     */
+    public JsonElement read(JsonReader jsonReader) throws IOException {
+        return read(jsonReader, mRoot);
+    }
+
+    /**
+     * Reads the next row object, reading the named fields with the projection and the others whole.
+     */
+    JsonObject readRow(JsonReader jsonReader, String... projectedFields) throws IOException {
+        JsonObject row = new JsonObject();
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            String name = jsonReader.nextName();
+            row.add(name, isProjected(name, projectedFields) ? read(jsonReader) : mJsonParser.parse(jsonReader));
+        }
+        jsonReader.endObject();
+        return row;
+    }
+
+    @Override
+    public String toString() {
+        return mPaths.toString();
+    }
+
+    private JsonElement read(JsonReader jsonReader, Node node) throws IOException {
+        JsonToken token = jsonReader.peek();
+        if (token == JsonToken.BEGIN_OBJECT) {
+            JsonObject object = new JsonObject();
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                String name = jsonReader.nextName();
+                Node child = node.mChildren.get(name);
+                if (child == null) {
+                    jsonReader.skipValue();
+                } else if (child.mWhole) {
+                    object.add(name, mJsonParser.parse(jsonReader));
+                } else {
+                    object.add(name, read(jsonReader, child));
+                }
+            }
+            jsonReader.endObject();
+            return object;
+        } else if (token == JsonToken.BEGIN_ARRAY) {
+            JsonArray array = new JsonArray();
+            jsonReader.beginArray();
+            while (jsonReader.hasNext()) {
+                array.add(read(jsonReader, node));
+            }
+            jsonReader.endArray();
+            return array;
+        } else if (token == JsonToken.NULL) {
+            jsonReader.nextNull();
+            return JsonNull.INSTANCE;
+        }
+        return mJsonParser.parse(jsonReader);
+    }
+
+    private static boolean isProjected(String name, String[] projectedFields) {
+        for (String field : projectedFields) {
+            if (field.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private static class Node {
+
+        final Map<String, Node> mChildren = new HashMap<>();
+        // Keeps the entire value, such as "address" when both it and "address.city" are given
+        boolean mWhole;
+
+        void add(String path) {
+            Node node = this;
+            for (String name : path.split("\\" + PATH_SEPARATOR)) {
+                if (node.mWhole) {
+                    return;
+                }
+                Node child = node.mChildren.get(name);
+                if (child == null) {
+                    child = new Node();
+                    node.mChildren.put(name, child);
+                }
+                node = child;
+            }
+            node.mWhole = true;
+            node.mChildren.clear();
+        }
+    }
+}
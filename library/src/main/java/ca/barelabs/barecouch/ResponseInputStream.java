@@ -0,0 +1,24 @@
+package ca.barelabs.barecouch;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+/**
+ * The body of a {@link TransportResponse}. Closing it closes the response, so a caller that only keeps the stream,
+ * like an attachment reader, still returns the connection and its {@link ConnectionPool} permit.
+ */
+public class ResponseInputStream extends FilterInputStream {
+
+    private final TransportResponse mResponse;
+
+
+    public ResponseInputStream(InputStream in, TransportResponse response) {
+        super(in);
+        mResponse = response;
+    }
+
+    @Override
+    public void close() {
+        mResponse.close();
+    }
+}
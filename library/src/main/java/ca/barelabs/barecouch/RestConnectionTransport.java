@@ -0,0 +1,214 @@
+package ca.barelabs.barecouch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ca.barelabs.bareconnection.ObjectParser;
+import ca.barelabs.bareconnection.RestConnection;
+import ca.barelabs.bareconnection.RestException;
+import ca.barelabs.bareconnection.RestProperties;
+import ca.barelabs.bareconnection.RestResponse;
+import ca.barelabs.bareconnection.RestUtils;
+
+/**
+ * The default {@link Transport} which sends every request through a BareConnection {@link RestConnection}.
+ * {@link RestConnection} doesn't take request headers so any set on a {@link TransportRequest} are not sent.
+ */
+public class RestConnectionTransport implements Transport {
+
+    private final RestProperties mProperties;
+    private final ConnectionPool mConnectionPool;
+    private final String mDestination;
+
+
+    public RestConnectionTransport(RestProperties properties) {
+        this(properties, new ConnectionPool());
+    }
+
+    public RestConnectionTransport(RestProperties properties, ConnectionPool connectionPool) {
+        mProperties = properties;
+        mConnectionPool = connectionPool;
+        mDestination = ConnectionPool.getDestination(properties.getUrl());
+    }
+
+    public RestProperties getProperties() {
+        return mProperties;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return mConnectionPool;
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        RestConnection connection = newConnection(request);
+        ConnectionPool.Permit permit = mConnectionPool.acquire(mDestination);
+        try {
+            return new RestTransportResponse(send(connection, request), mConnectionPool, permit);
+        } catch (RestException e) {
+            permit.release();
+            throw new TransportException(e.getStatusCode(), e.getMessage(), e);
+        } catch (IOException | RuntimeException e) {
+            permit.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean isSendingHeaders() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private RestConnection newConnection(TransportRequest request) {
+        RestConnection.Builder builder = new RestConnection.Builder()
+            .properties(mProperties)
+            .parser(request.getParser())
+            .maxRetryAttempts(request.getMaxRetryAttempts())
+            .retryOnIOException(request.isRetryOnIOException())
+            .backOffPolicy(request.getBackOffPolicy())
+            .path(RestUtils.toPath(request.getPaths()));
+        for (Map.Entry<String, String> param : request.getParams().entrySet()) {
+            builder.param(param.getKey(), param.getValue());
+        }
+        return builder.build();
+    }
+
+    private RestResponse send(RestConnection connection, TransportRequest request) throws IOException {
+        switch (request.getMethod()) {
+            case TransportRequest.METHOD_GET:
+                return connection.get();
+            case TransportRequest.METHOD_HEAD:
+                return connection.head();
+            case TransportRequest.METHOD_PUT:
+                return request.hasBody() ? connection.put(request.getBody()) : connection.put();
+            case TransportRequest.METHOD_POST:
+                return connection.post(request.getBody());
+            case TransportRequest.METHOD_DELETE:
+                return connection.delete();
+            default:
+                throw new IllegalArgumentException("Unsupported request method " + request.getMethod());
+        }
+    }
+
+
+    private static class RestTransportResponse implements TransportResponse {
+
+        private final RestResponse mResponse;
+        private final ConnectionPool mConnectionPool;
+        private final ConnectionPool.Permit mPermit;
+        private final AtomicBoolean mClosed = new AtomicBoolean();
+        private final int mStatusCode;
+        private InputStream mContent;
+
+
+        RestTransportResponse(RestResponse response, ConnectionPool connectionPool, ConnectionPool.Permit permit) throws IOException {
+            mResponse = response;
+            mConnectionPool = connectionPool;
+            mPermit = permit;
+            mStatusCode = getConnection().getResponseCode();
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return getConnection().getHeaderField(name);
+        }
+
+        @Override
+        public String getContentType() {
+            return getConnection().getContentType();
+        }
+
+        @Override
+        public int getContentLength() {
+            return getConnection().getContentLength();
+        }
+
+        @Override
+        public String getIncomingCharset() {
+            return mResponse.getIncomingCharset();
+        }
+
+        @Override
+        public ObjectParser getParser() {
+            return mResponse.getParser();
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new ResponseInputStream(openContent(), this);
+        }
+
+        private InputStream openContent() throws IOException {
+            if (mContent == null) {
+                mContent = mResponse.getContent();
+            }
+            return mContent;
+        }
+
+        @Override
+        public String parse() throws IOException {
+            try {
+                return mResponse.parse();
+            } finally {
+                mPermit.release();
+            }
+        }
+
+        @Override
+        public <T> T parseAs(Class<T> clss) throws IOException {
+            try {
+                return mResponse.parseAs(clss);
+            } finally {
+                mPermit.release();
+            }
+        }
+
+        @Override
+        public <T> T parseAs(Type type) throws IOException {
+            try {
+                return mResponse.parseAs(type);
+            } finally {
+                mPermit.release();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!mClosed.compareAndSet(false, true)) {
+                return;
+            }
+            InputStream content = null;
+            try {
+                content = openContent();
+            } catch (IOException e) {
+                // Released below by dropping the connection
+            }
+            mConnectionPool.release(this, content);
+            mPermit.release();
+        }
+
+        @Override
+        public void disconnect() {
+            mClosed.set(true);
+            mResponse.disconnect();
+            mPermit.release();
+        }
+
+        private HttpURLConnection getConnection() {
+            return mResponse.getConnection();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ca.barelabs.barecouch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps retries across a whole client to a ratio of the requests made over a sliding window, so a struggling
+ * server isn't hit with a multiple of its normal load. A small number of retries per second is always allowed
+ * so a quiet client can still recover from occasional failures.
+ */
+public class RetryBudget {
+
+    public static final double DEFAULT_RETRY_RATIO = 0.1;
+    public static final int DEFAULT_MIN_RETRIES_PER_SECOND = 10;
+    public static final int DEFAULT_WINDOW_SECONDS = 10;
+
+    private final double mRetryRatio;
+    private final int mMinRetriesPerSecond;
+    private final long[] mRequests;
+    private final long[] mRetries;
+    private final long[] mBucketSeconds;
+    private long mTotalRequests;
+    private long mTotalRetries;
+    private long mRejectedRetries;
+
+
+    public RetryBudget() {
+        this(DEFAULT_RETRY_RATIO, DEFAULT_MIN_RETRIES_PER_SECOND, DEFAULT_WINDOW_SECONDS);
+    }
+
+    public RetryBudget(double retryRatio, int minRetriesPerSecond, int windowSeconds) {
+        if (retryRatio < 0 || minRetriesPerSecond < 0 || windowSeconds <= 0) {
+            throw new IllegalArgumentException("Retry ratio and minimum retries can't be negative and the window must be positive.");
+        }
+        mRetryRatio = retryRatio;
+        mMinRetriesPerSecond = minRetriesPerSecond;
+        mRequests = new long[windowSeconds];
+        mRetries = new long[windowSeconds];
+        mBucketSeconds = new long[windowSeconds];
+    }
+
+    public double getRetryRatio() {
+        return mRetryRatio;
+    }
+
+    public synchronized void recordRequest() {
+        mRequests[bucket()]++;
+        mTotalRequests++;
+    }
+
+    /**
+     * Takes a retry from the budget, returns false when the budget is spent and the request shouldn't be retried.
+     */
+    public synchronized boolean tryRetry() {
+        int current = bucket();
+        long now = mBucketSeconds[current];
+        long requests = 0;
+        long retries = 0;
+        for (int i = 0; i < mRequests.length; i++) {
+            if (now - mBucketSeconds[i] < mBucketSeconds.length) {
+                requests += mRequests[i];
+                retries += mRetries[i];
+            }
+        }
+        long allowed = Math.max((long) (requests * mRetryRatio), (long) mMinRetriesPerSecond * mRequests.length);
+        if (retries >= allowed) {
+            mRejectedRetries++;
+            return false;
+        }
+        mRetries[current]++;
+        mTotalRetries++;
+        return true;
+    }
+
+    public synchronized long getTotalRequests() {
+        return mTotalRequests;
+    }
+
+    public synchronized long getTotalRetries() {
+        return mTotalRetries;
+    }
+
+    public synchronized long getRejectedRetries() {
+        return mRejectedRetries;
+    }
+
+    private int bucket() {
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        int length = mBucketSeconds.length;
+        // nanoTime() may be negative, keep the index in range
+        int index = (int) (((second % length) + length) % length);
+        if (mBucketSeconds[index] != second) {
+            // The bucket holds counts from a previous pass over the window
+            mBucketSeconds[index] = second;
+            mRequests[index] = 0;
+            mRetries[index] = 0;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,168 @@
+package ca.barelabs.barecouch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import ca.barelabs.barecouch.BulkResult.DocumentResult;
+
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Reads a _bulk_docs response one document result at a time instead of parsing the whole array up front.
+ * {@link #errorIterator()} only returns the documents that failed; successful results are skipped once their
+ * {@code ok} field is seen, which CouchDB writes first, and counted without decoding or creating anything, so
+ * memory stays flat however large the batch is.
+ */
+public class StreamingBulkResult implements Closeable {
+
+    public static final String FIELD_OK = "ok";
+    public static final String FIELD_ID = "id";
+    public static final String FIELD_REV = "rev";
+    public static final String FIELD_ERROR = "error";
+    public static final String FIELD_REASON = "reason";
+
+    private final TransportResponse mResponse;
+    private final JsonReader mJsonReader;
+    private long mSuccessCount;
+    private long mErrorCount;
+    private boolean mIteratorCreated;
+    private boolean mClosed;
+
+
+    public StreamingBulkResult(TransportResponse response) throws UnsupportedEncodingException, IOException {
+        mResponse = response;
+        try {
+            mJsonReader = new JsonReader(new InputStreamReader(mResponse.getContent(), mResponse.getIncomingCharset()));
+            mJsonReader.beginArray();
+        } catch (IOException e) {
+            mResponse.close();
+            throw new DatabaseAccessException(e);
+        } catch (RuntimeException e) {
+            mResponse.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The number of successful results read so far.
+     */
+    public long getSuccessCount() {
+        return mSuccessCount;
+    }
+
+    /**
+     * The number of failed results read so far.
+     */
+    public long getErrorCount() {
+        return mErrorCount;
+    }
+
+    public Iterator<DocumentResult> iterator() {
+        return createIterator(false);
+    }
+
+    public Iterator<DocumentResult> errorIterator() {
+        return createIterator(true);
+    }
+
+    @Override
+    public void close() {
+        if (!mClosed) {
+            mClosed = true;
+            mResponse.close();
+        }
+    }
+
+    private Iterator<DocumentResult> createIterator(boolean errorsOnly) {
+        if (mClosed) {
+            throw new IllegalStateException("Access to iterator is not possible after bulk result was closed or disconnected.");
+        }
+        if (mIteratorCreated) {
+            throw new IllegalStateException("Iterator can only be called once!");
+        }
+        mIteratorCreated = true;
+        return new StreamingBulkResultIterator(errorsOnly);
+    }
+
+
+    private class StreamingBulkResultIterator implements Iterator<DocumentResult> {
+
+        private final boolean mErrorsOnly;
+        private DocumentResult mNext;
+
+
+        StreamingBulkResultIterator(boolean errorsOnly) {
+            mErrorsOnly = errorsOnly;
+        }
+
+        public boolean hasNext() {
+            try {
+                while (mNext == null && mJsonReader.hasNext()) {
+                    mNext = readResult();
+                }
+                return mNext != null;
+            } catch (IOException e) {
+                throw new DatabaseAccessException(e);
+            }
+        }
+
+        public DocumentResult next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("Attempt to iterate beyond the result set.");
+            }
+            DocumentResult result = mNext;
+            mNext = null;
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private DocumentResult readResult() throws IOException {
+            String id = null;
+            String rev = null;
+            String error = null;
+            String reason = null;
+            boolean ok = false;
+            mJsonReader.beginObject();
+            while (mJsonReader.hasNext()) {
+                String name = mJsonReader.nextName();
+                if (mErrorsOnly && (ok || name.equals(FIELD_OK) || name.equals(FIELD_REV))) {
+                    // Only successful results have these, nothing else in them is needed
+                    ok = true;
+                    mJsonReader.skipValue();
+                } else if (name.equals(FIELD_ERROR)) {
+                    error = mJsonReader.nextString();
+                } else if (name.equals(FIELD_ID)) {
+                    id = mJsonReader.nextString();
+                } else if (name.equals(FIELD_REV)) {
+                    rev = mJsonReader.nextString();
+                } else if (name.equals(FIELD_REASON)) {
+                    reason = mJsonReader.nextString();
+                } else {
+                    mJsonReader.skipValue();
+                }
+            }
+            mJsonReader.endObject();
+            if (ok || error == null) {
+                mSuccessCount++;
+                if (mErrorsOnly) {
+                    return null;
+                }
+            } else {
+                mErrorCount++;
+            }
+            DocumentResult result = new DocumentResult();
+            result.setId(id);
+            result.setRev(rev);
+            result.setError(error);
+            result.setReason(reason);
+            return result;
+        }
+    }
+}
@@ -8,10 +8,10 @@ import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 import ca.barelabs.bareconnection.ObjectParser;
-import ca.barelabs.bareconnection.RestResponse;
 import ca.barelabs.barecouch.ChangesResult.DocumentChange;
 
-import com.google.gson.JsonElement;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 
@@ -19,7 +19,7 @@ public class StreamingChangesResult implements Closeable {
 
     private final ChangesQuery mQuery;
     private final ObjectParser mParser;
-    private final RestResponse mResponse;
+    private final TransportResponse mResponse;
     private final JsonParser mJsonParser = new JsonParser();
     private final JsonReader mJsonReader;
     private String mLastSeq;
@@ -28,12 +28,18 @@ public class StreamingChangesResult implements Closeable {
     private boolean mAllChangesRead;
     
 
-    public StreamingChangesResult(ChangesQuery query, RestResponse response) throws UnsupportedEncodingException, IOException {
+    public StreamingChangesResult(ChangesQuery query, TransportResponse response) throws UnsupportedEncodingException, IOException {
     	mQuery = query;
         mParser = response.getParser();
         mResponse = response;
-        mJsonReader = new JsonReader(new InputStreamReader(mResponse.getContent(), mResponse.getIncomingCharset()));
-        parseMetadata(mJsonReader);
+        try {
+            mJsonReader = new JsonReader(new InputStreamReader(mResponse.getContent(), mResponse.getIncomingCharset()));
+            parseMetadata(mJsonReader);
+        } catch (IOException | RuntimeException e) {
+            // Nothing will be returned to close, so release the connection here
+            mResponse.close();
+            throw e;
+        }
     }
 
     public ChangesQuery getQuery() {
@@ -64,11 +70,34 @@ public class StreamingChangesResult implements Closeable {
         mIteratorCreated = true;
         return new StreamingChangesResultIterator();
     }
+
+    /**
+     * Iterates over the docs of the changes, which must have been queried with include_docs, decoded with the
+     * response's parser into objects of the class. Deleted documents are returned as they were left on deletion.
+     */
+    public <T> Iterator<T> iterator(Class<T> docClss) {
+        return iterator(JsonBinding.getBinder(mParser, docClss));
+    }
+
+    /**
+     * Like {@link #iterator(Class)} but binds straight from the response with the Gson, without building a tree
+     * or string for each change. The Gson replaces the response's parser, so it needs the same type adapters.
+     */
+    public <T> Iterator<T> iterator(Class<T> docClss, Gson gson) {
+        return iterator(JsonBinding.getBinder(gson.getAdapter(docClss)));
+    }
+
+    private <T> Iterator<T> iterator(JsonBinding.Binder<T> binder) {
+        iterator();
+        return new TypedStreamingChangesResultIterator<>(binder);
+    }
     
     @Override
     public void close() {
-        mClosed = true;
-        mResponse.disconnect();
+        if (!mClosed) {
+            mClosed = true;
+            mResponse.close();
+        }
     }
     
     private void parseMetadata(JsonReader jsonReader) {
@@ -127,12 +156,56 @@ public class StreamingChangesResult implements Closeable {
             if (!hasNext()) {
                 throw new NoSuchElementException("Attempt to iterate beyond the result set.");
             }
-            JsonElement jsonElement = mJsonParser.parse(mJsonReader);
-            return new DocumentChange(mParser, jsonElement.getAsJsonObject());
+            Projection projection = mQuery.getProjection();
+            try {
+                JsonObject jsonObject = projection == null ? mJsonParser.parse(mJsonReader).getAsJsonObject()
+                    : projection.readRow(mJsonReader, DocumentChange.FIELD_DOC);
+                return new DocumentChange(mParser, jsonObject);
+            } catch (IOException e) {
+                throw new DatabaseAccessException(e);
+            }
         }
         
         public void remove() {
             throw new UnsupportedOperationException();
         }
     }
+
+
+    private class TypedStreamingChangesResultIterator<T> implements Iterator<T> {
+
+        private final JsonBinding.Binder<T> mBinder;
+
+
+        TypedStreamingChangesResultIterator(JsonBinding.Binder<T> binder) {
+            mBinder = binder;
+        }
+
+        public boolean hasNext() {
+            try {
+                if (mJsonReader.hasNext()) {
+                    return true;
+                }
+                mAllChangesRead = true;
+                return false;
+            } catch (IOException e) {
+                throw new DatabaseAccessException(e);
+            }
+        }
+
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("Attempt to iterate beyond the result set.");
+            }
+            try {
+                return JsonBinding.readField(mJsonReader, DocumentChange.FIELD_DOC, mBinder, mQuery.getProjection());
+            } catch (IOException e) {
+                throw new DatabaseAccessException(e);
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
@@ -8,10 +8,10 @@ import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 import ca.barelabs.bareconnection.ObjectParser;
-import ca.barelabs.bareconnection.RestResponse;
 import ca.barelabs.barecouch.ViewResult.Row;
 
-import com.google.gson.JsonElement;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 
@@ -19,7 +19,7 @@ public class StreamingViewResult implements Closeable {
 
     private final ViewQuery mQuery;
     private final ObjectParser mParser;
-    private final RestResponse mResponse;
+    private final TransportResponse mResponse;
     private final JsonParser mJsonParser = new JsonParser();
     private final JsonReader mJsonReader;
     private long mOffset;
@@ -29,12 +29,18 @@ public class StreamingViewResult implements Closeable {
     private boolean mClosed;
     
 
-    public StreamingViewResult(ViewQuery query, RestResponse response) throws UnsupportedEncodingException, IOException {
+    public StreamingViewResult(ViewQuery query, TransportResponse response) throws UnsupportedEncodingException, IOException {
     	mQuery = query;
         mParser = response.getParser();
         mResponse = response;
-        mJsonReader = new JsonReader(new InputStreamReader(mResponse.getContent(), mResponse.getIncomingCharset()));
-        parseMetadata(mJsonReader);
+        try {
+            mJsonReader = new JsonReader(new InputStreamReader(mResponse.getContent(), mResponse.getIncomingCharset()));
+            parseMetadata(mJsonReader);
+        } catch (IOException | RuntimeException e) {
+            // Nothing will be returned to close, so release the connection here
+            mResponse.close();
+            throw e;
+        }
     }
     
     public ViewQuery getQuery() {
@@ -67,11 +73,35 @@ public class StreamingViewResult implements Closeable {
         mIteratorCreated = true;
         return new StreamingViewResultIterator();
     }
+
+    /**
+     * Iterates over the docs of the rows when the query includes docs, or else their values, decoded with the
+     * response's parser into objects of the class.
+     */
+    public <T> Iterator<T> iterator(Class<T> clss) {
+        return iterator(JsonBinding.getBinder(mParser, clss));
+    }
+
+    /**
+     * Like {@link #iterator(Class)} but binds straight from the response with the Gson, without building a tree
+     * or string for each row. The Gson replaces the response's parser, so it needs the same type adapters.
+     */
+    public <T> Iterator<T> iterator(Class<T> clss, Gson gson) {
+        return iterator(JsonBinding.getBinder(gson.getAdapter(clss)));
+    }
+
+    private <T> Iterator<T> iterator(JsonBinding.Binder<T> binder) {
+        iterator();
+        String field = mQuery.isIncludeDocs() ? Row.FIELD_DOC : Row.FIELD_VALUE;
+        return new TypedStreamingViewResultIterator<>(field, binder);
+    }
     
     @Override
     public void close() {
-        mClosed = true;
-        mResponse.disconnect();
+        if (!mClosed) {
+            mClosed = true;
+            mResponse.close();
+        }
     }
     
     private void parseMetadata(JsonReader jsonReader) {
@@ -114,12 +144,56 @@ public class StreamingViewResult implements Closeable {
             if (!hasNext()) {
                 throw new NoSuchElementException("Attempt to iterate beyond the result set.");
             }
-            JsonElement jsonElement = mJsonParser.parse(mJsonReader);
-            return new Row(mParser, jsonElement.getAsJsonObject());
+            String projectedField = mQuery.getProjectedField();
+            try {
+                JsonObject jsonObject = projectedField == null ? mJsonParser.parse(mJsonReader).getAsJsonObject()
+                    : mQuery.getProjection().readRow(mJsonReader, projectedField);
+                return new Row(mParser, jsonObject);
+            } catch (IOException e) {
+                throw new DatabaseAccessException(e);
+            }
         }
         
         public void remove() {
             throw new UnsupportedOperationException();
         }
     }
+
+
+    private class TypedStreamingViewResultIterator<T> implements Iterator<T> {
+
+        private final String mField;
+        private final JsonBinding.Binder<T> mBinder;
+        private final Projection mProjection;
+
+
+        TypedStreamingViewResultIterator(String field, JsonBinding.Binder<T> binder) {
+            mField = field;
+            mBinder = binder;
+            mProjection = field.equals(mQuery.getProjectedField()) ? mQuery.getProjection() : null;
+        }
+
+        public boolean hasNext() {
+            try {
+                return mJsonReader.hasNext();
+            } catch (IOException e) {
+                throw new DatabaseAccessException(e);
+            }
+        }
+
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("Attempt to iterate beyond the result set.");
+            }
+            try {
+                return JsonBinding.readField(mJsonReader, mField, mBinder, mProjection);
+            } catch (IOException e) {
+                throw new DatabaseAccessException(e);
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
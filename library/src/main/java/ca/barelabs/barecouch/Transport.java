@@ -0,0 +1,19 @@
+package ca.barelabs.barecouch;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sends requests built by a {@link CouchDbClient} to the server. Responses with an error status must be
+ * reported by throwing a {@link TransportException}.
+ */
+public interface Transport extends Closeable {
+
+    TransportResponse execute(TransportRequest request) throws IOException;
+
+    /**
+     * Whether the headers of a request, and the compression of its body, reach the server. Conditional
+     * requests and compression are only used when they do.
+     */
+    boolean isSendingHeaders();
+}
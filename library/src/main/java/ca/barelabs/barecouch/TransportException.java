@@ -0,0 +1,37 @@
+package ca.barelabs.barecouch;
+
+import ca.barelabs.bareconnection.RestException;
+
+/**
+ * A response with an error status. It's a {@link RestException} so callers that catch those to handle a
+ * status like 404 or 409 keep working whichever {@link Transport} is used.
+ */
+@SuppressWarnings("serial")
+public class TransportException extends RestException {
+
+    private final int mStatusCode;
+    private final String mBody;
+
+
+    public TransportException(int statusCode, String body) {
+        this(statusCode, body, null);
+    }
+
+    public TransportException(int statusCode, String body, Throwable cause) {
+        super(statusCode, "Request failed with status code " + statusCode + (body == null ? "" : ": " + body));
+        if (cause != null) {
+            initCause(cause);
+        }
+        mStatusCode = statusCode;
+        mBody = body;
+    }
+
+    @Override
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    public String getBody() {
+        return mBody;
+    }
+}
@@ -0,0 +1,263 @@
+package ca.barelabs.barecouch;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ca.barelabs.bareconnection.BackOffPolicy;
+import ca.barelabs.bareconnection.ObjectParser;
+import ca.barelabs.bareconnection.RestConnection;
+
+public class TransportRequest {
+
+    public static final String METHOD_GET = "GET";
+    public static final String METHOD_HEAD = "HEAD";
+    public static final String METHOD_PUT = "PUT";
+    public static final String METHOD_POST = "POST";
+    public static final String METHOD_DELETE = "DELETE";
+    public static final int NO_COMPRESSION = -1;
+
+    private final String mMethod;
+    private final String[] mPaths;
+    private final Map<String, String> mParams;
+    private final Map<String, String> mHeaders;
+    private final Object mBody;
+    private final ObjectParser mParser;
+    private final int mMaxRetryAttempts;
+    private final boolean mRetryOnIOException;
+    private final BackOffPolicy mBackOffPolicy;
+    private final int mGzipThreshold;
+    private final boolean mHedgeable;
+    private final boolean mCoalescable;
+    private final boolean mReadOnly;
+    private final Cancellation mCancellation;
+
+
+    private TransportRequest(Builder builder, String method, Object body) {
+        mMethod = method;
+        mPaths = builder.mPaths;
+        mParams = Collections.unmodifiableMap(new LinkedHashMap<>(builder.mParams));
+        mHeaders = Collections.unmodifiableMap(new LinkedHashMap<>(builder.mHeaders));
+        mBody = body;
+        mParser = builder.mParser;
+        mMaxRetryAttempts = builder.mMaxRetryAttempts;
+        mRetryOnIOException = builder.mRetryOnIOException;
+        mBackOffPolicy = builder.mBackOffPolicy;
+        mGzipThreshold = builder.mGzipThreshold;
+        mHedgeable = builder.mHedgeable;
+        mCoalescable = builder.mCoalescable;
+        mReadOnly = builder.mReadOnly;
+        mCancellation = null;
+    }
+
+    private TransportRequest(TransportRequest request, int maxRetryAttempts, Cancellation cancellation) {
+        mMethod = request.mMethod;
+        mPaths = request.mPaths;
+        mParams = request.mParams;
+        mHeaders = request.mHeaders;
+        mBody = request.mBody;
+        mParser = request.mParser;
+        mMaxRetryAttempts = maxRetryAttempts;
+        mRetryOnIOException = request.mRetryOnIOException;
+        mBackOffPolicy = request.mBackOffPolicy;
+        mGzipThreshold = request.mGzipThreshold;
+        mHedgeable = request.mHedgeable;
+        mCoalescable = request.mCoalescable;
+        mReadOnly = request.mReadOnly;
+        mCancellation = cancellation;
+    }
+
+    /**
+     * Returns a copy of this request for transports that handle retries themselves before delegating.
+     */
+    public TransportRequest withMaxRetryAttempts(int maxRetryAttempts) {
+        return new TransportRequest(this, maxRetryAttempts, mCancellation);
+    }
+
+    /**
+     * Returns a copy of this request which can be aborted with the given {@link Cancellation}.
+     */
+    public TransportRequest withCancellation(Cancellation cancellation) {
+        return new TransportRequest(this, mMaxRetryAttempts, cancellation);
+    }
+
+    public String getMethod() {
+        return mMethod;
+    }
+
+    public String[] getPaths() {
+        return mPaths.clone();
+    }
+
+    public Map<String, String> getParams() {
+        return mParams;
+    }
+
+    public Map<String, String> getHeaders() {
+        return mHeaders;
+    }
+
+    public String getHeader(String name) {
+        return mHeaders.get(name);
+    }
+
+    public boolean hasBody() {
+        return mBody != null;
+    }
+
+    public Object getBody() {
+        return mBody;
+    }
+
+    public ObjectParser getParser() {
+        return mParser;
+    }
+
+    public int getMaxRetryAttempts() {
+        return mMaxRetryAttempts;
+    }
+
+    public boolean isRetryOnIOException() {
+        return mRetryOnIOException;
+    }
+
+    public BackOffPolicy getBackOffPolicy() {
+        return mBackOffPolicy;
+    }
+
+    /**
+     * The body size in bytes from which transports that support it should gzip the body, or {@link #NO_COMPRESSION}.
+     */
+    public int getGzipThreshold() {
+        return mGzipThreshold;
+    }
+
+    /**
+     * Whether the request is a quick idempotent read that may be sent twice with the first answer winning.
+     */
+    public boolean isHedgeable() {
+        return mHedgeable;
+    }
+
+    /**
+     * Whether identical requests in flight at the same time may share one response. The body of a coalesced
+     * response is buffered so only requests whose response is read in full should allow it.
+     */
+    public boolean isCoalescable() {
+        return mCoalescable;
+    }
+
+    /**
+     * Whether the request only reads, so it's safe to repeat on another server. GET and HEAD requests always
+     * are, a POST like a view query with keys has to say so.
+     */
+    public boolean isReadOnly() {
+        return mReadOnly || METHOD_GET.equals(mMethod) || METHOD_HEAD.equals(mMethod);
+    }
+
+    public Cancellation getCancellation() {
+        return mCancellation;
+    }
+
+    /**
+     * Whether the request was cancelled, in which case its failure says nothing about the server.
+     */
+    public boolean isCancelled() {
+        return mCancellation != null && mCancellation.isCancelled();
+    }
+
+
+    public static final class Builder {
+
+        private final String[] mPaths;
+        private final Map<String, String> mParams = new LinkedHashMap<>();
+        private final Map<String, String> mHeaders = new LinkedHashMap<>();
+        private ObjectParser mParser;
+        private int mMaxRetryAttempts = RestConnection.DEFAULT_MAX_RETRY_ATTEMPTS;
+        private boolean mRetryOnIOException;
+        private BackOffPolicy mBackOffPolicy;
+        private int mGzipThreshold = NO_COMPRESSION;
+        private boolean mHedgeable;
+        private boolean mCoalescable;
+        private boolean mReadOnly;
+
+
+        public Builder(String... paths) {
+            mPaths = paths.clone();
+        }
+
+        public Builder param(String name, String value) {
+            mParams.put(name, value);
+            return this;
+        }
+
+        public Builder header(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+
+        public Builder parser(ObjectParser parser) {
+            mParser = parser;
+            return this;
+        }
+
+        public Builder maxRetryAttempts(int maxRetryAttempts) {
+            mMaxRetryAttempts = maxRetryAttempts;
+            return this;
+        }
+
+        public Builder retryOnIOException(boolean retryOnIOException) {
+            mRetryOnIOException = retryOnIOException;
+            return this;
+        }
+
+        public Builder backOffPolicy(BackOffPolicy backOffPolicy) {
+            mBackOffPolicy = backOffPolicy;
+            return this;
+        }
+
+        public Builder gzipThreshold(int gzipThreshold) {
+            mGzipThreshold = gzipThreshold;
+            return this;
+        }
+
+        public Builder hedgeable(boolean hedgeable) {
+            mHedgeable = hedgeable;
+            return this;
+        }
+
+        public Builder coalescable(boolean coalescable) {
+            mCoalescable = coalescable;
+            return this;
+        }
+
+        public Builder readOnly(boolean readOnly) {
+            mReadOnly = readOnly;
+            return this;
+        }
+
+        public TransportRequest get() {
+            return new TransportRequest(this, METHOD_GET, null);
+        }
+
+        public TransportRequest head() {
+            return new TransportRequest(this, METHOD_HEAD, null);
+        }
+
+        public TransportRequest put() {
+            return new TransportRequest(this, METHOD_PUT, null);
+        }
+
+        public TransportRequest put(Object body) {
+            return new TransportRequest(this, METHOD_PUT, body);
+        }
+
+        public TransportRequest post(Object body) {
+            return new TransportRequest(this, METHOD_POST, body);
+        }
+
+        public TransportRequest delete() {
+            return new TransportRequest(this, METHOD_DELETE, null);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package ca.barelabs.barecouch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+
+import ca.barelabs.bareconnection.ObjectParser;
+
+/**
+ * A response returned by a {@link Transport}. The parse methods read the whole body and release the
+ * connection, otherwise {@link #close()} must be called once the content is no longer needed.
+ * <p>
+ * The execute methods of {@link CouchDbClient} return this in place of {@link ca.barelabs.bareconnection.RestResponse},
+ * which callers of those methods need to change to. Error statuses are still thrown as a
+ * {@link ca.barelabs.bareconnection.RestException}, now the {@link TransportException} subclass.
+ */
+public interface TransportResponse extends Closeable {
+
+    int getStatusCode();
+
+    String getHeaderField(String name);
+
+    String getContentType();
+
+    int getContentLength();
+
+    String getIncomingCharset();
+
+    ObjectParser getParser();
+
+    InputStream getContent() throws IOException;
+
+    String parse() throws IOException;
+
+    <T> T parseAs(Class<T> clss) throws IOException;
+
+    <T> T parseAs(Type type) throws IOException;
+
+    /**
+     * Releases the connection so it can be reused, draining what is left of the body when it is small enough.
+     */
+    @Override
+    void close();
+
+    /**
+     * Drops the underlying connection without trying to reuse it.
+     */
+    void disconnect();
+}
@@ -0,0 +1,151 @@
+package ca.barelabs.barecouch;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of parsed {@link ViewResult}s keyed by database, query and posted keys. Entries are
+ * revalidated on every query, with the view's ETag where the transport sends request headers and otherwise by
+ * comparing the result's update sequence, so a hit hands back the parsed result without reading any rows. Every
+ * caller gets its own copy of the cached result, so changing one doesn't affect the cache.
+ * <p>
+ * Memory is bounded by the total size of the response bodies, an estimate of what the parsed rows hold.
+ */
+public class ViewCache {
+
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    private final long mMaxBytes;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mBytes;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+
+    public ViewCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public ViewCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Maximum bytes must be positive.");
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    public static String getKey(String database, ViewQuery query) throws IOException {
+        String key = database + query.buildQuery();
+        if (query.getProjection() != null) {
+            // Cached results are parsed, so a projected result can't serve a query for other fields
+            key += query.getProjection();
+        }
+        return query.hasMultipleKeys() ? key + query.getKeysAsJson() : key;
+    }
+
+    public synchronized Entry get(String key) {
+        return mEntries.get(key);
+    }
+
+    /**
+     * Records that the cached entry is still current and returns its result.
+     */
+    public ViewResult validated(Entry entry) {
+        synchronized (this) {
+            mHitCount++;
+        }
+        return entry.mResult.copy();
+    }
+
+    /**
+     * Parses a fresh response, caching the result when it can be validated later by its ETag or update sequence.
+     * The ETag is only kept when it can be sent back, that is when the transport sends request headers.
+     */
+    public ViewResult put(String key, ViewQuery query, TransportResponse response, boolean useETag) throws IOException {
+        BufferedTransportResponse buffered = BufferedTransportResponse.buffer(response);
+        ViewResult result = new ViewResult(query, buffered);
+        String etag = useETag ? buffered.getHeaderField(CouchDbClient.ETAG_FIELD) : null;
+        long bodyLength = buffered.getBodyLength();
+        synchronized (this) {
+            mMissCount++;
+            remove(key);
+            if ((etag != null || result.getUpdateSeq() != null) && bodyLength <= mMaxBytes) {
+                mEntries.put(key, new Entry(result, etag, bodyLength));
+                mBytes += bodyLength;
+                evict();
+                return result.copy();
+            }
+        }
+        return result;
+    }
+
+    public synchronized void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mBytes -= entry.mBodyLength;
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    public synchronized int getSize() {
+        return mEntries.size();
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            iterator.remove();
+            mBytes -= entry.mBodyLength;
+            mEvictionCount++;
+        }
+    }
+
+
+    public static class Entry {
+
+        private final ViewResult mResult;
+        private final String mETag;
+        private final long mBodyLength;
+
+
+        Entry(ViewResult result, String etag, long bodyLength) {
+            mResult = result;
+            mETag = etag;
+            mBodyLength = bodyLength;
+        }
+
+        /**
+         * The cached result itself, which must not be modified.
+         */
+        public ViewResult getResult() {
+            return mResult;
+        }
+
+        public String getETag() {
+            return mETag;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package ca.barelabs.barecouch;
+
+import java.io.Serializable;
+
+/**
+ * The position of a {@link PagedViewIterator}, the key and doc id of the next row to return and how many rows with
+ * that same key and doc id come before it. It's serializable so a scan can be resumed later, or by another process,
+ * with the same query.
+ */
+public class ViewCursor implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final ViewCursor END = new ViewCursor(null, null);
+
+    private final String mStartKeyJson;
+    private final String mStartDocId;
+    private final int mSkip;
+
+
+    ViewCursor(String startKeyJson, String startDocId) {
+        this(startKeyJson, startDocId, 0);
+    }
+
+    ViewCursor(String startKeyJson, String startDocId, int skip) {
+        mStartKeyJson = startKeyJson;
+        mStartDocId = startDocId;
+        mSkip = skip;
+    }
+
+    /**
+     * The key of the next row as JSON, null when the scan is complete.
+     */
+    public String getStartKeyJson() {
+        return mStartKeyJson;
+    }
+
+    public String getStartDocId() {
+        return mStartDocId;
+    }
+
+    /**
+     * The number of rows with the start key and doc id to skip, which a view emitting the same key more than once
+     * for a document can have many of.
+     */
+    public int getSkip() {
+        return mSkip;
+    }
+
+    boolean isAt(String keyJson, String docId) {
+        return mStartKeyJson != null && mStartKeyJson.equals(keyJson)
+            && (mStartDocId == null ? docId == null : mStartDocId.equals(docId));
+    }
+
+    public boolean isEnd() {
+        return mStartKeyJson == null;
+    }
+
+    @Override
+    public String toString() {
+        return isEnd() ? "end" : mStartKeyJson + " " + mStartDocId + (mSkip > 0 ? " +" + mSkip : "");
+    }
+}
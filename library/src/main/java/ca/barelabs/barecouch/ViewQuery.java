@@ -2,6 +2,7 @@ package ca.barelabs.barecouch;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -60,6 +61,7 @@ public class ViewQuery {
     private int mLimit = NOT_SET;
     private int mSkip = NOT_SET;
     private int mGroupLevel = NOT_SET;
+    private Projection mProjection;
 
     
     /**
@@ -122,6 +124,15 @@ public class ViewQuery {
         return mGson.toJson(mKeys);
     }
 
+    /**
+     * The keys body for some of the keys, used to send a large keys query in chunks.
+     */
+    String getKeysAsJson(Collection<?> keyList) {
+        Keys keys = new Keys();
+        keys.setValues(keyList);
+        return mGson.toJson(keys);
+    }
+
     public ViewQuery keys(Collection<?> keyList) {
         mKeys.setValues(keyList);
         return this;
@@ -228,6 +239,17 @@ public class ViewQuery {
         return mEndKey;
     }
 
+    String getEndKeyJson() {
+        return mEndKey == null ? null : mGson.toJson(mEndKey);
+    }
+
+    /**
+     * Serializes a key with this query's Gson, the same way its own keys are.
+     */
+    String toJson(Object key) {
+        return mGson.toJson(key);
+    }
+
     public ViewQuery endKey(Object object) {
         mEndKey = object;
         return this;
@@ -385,11 +407,58 @@ public class ViewQuery {
         return this;
     }
 
+    public Projection getProjection() {
+        return mProjection;
+    }
+
+    /**
+     * The row field the projection applies to, the doc when docs are included and otherwise the value, or null when
+     * nothing is projected. The value of an _all_docs row holds the revision rather than the document, so it's
+     * never projected.
+     */
+    String getProjectedField() {
+        if (mProjection == null) {
+            return null;
+        } else if (mIncludeDocs) {
+            return ViewResult.Row.FIELD_DOC;
+        }
+        return mAllDocs ? null : ViewResult.Row.FIELD_VALUE;
+    }
+
+    /**
+     * Keeps only these paths of each row's doc when docs are included, or else of its value, when decoding, see
+     * {@link Projection}. Other fields of the row are kept whole.
+     */
+    public ViewQuery fields(String... paths) {
+        return fields(Arrays.asList(paths));
+    }
+
+    public ViewQuery fields(Collection<String> paths) {
+        mProjection = paths == null || paths.isEmpty() ? null : new Projection(paths);
+        return this;
+    }
+
     public String buildQuery() throws IOException {
         Map<String, String> params = createParams();
         return createViewPath() + "?" + RestUtils.toQuery(params, RestConnection.DEFAULT_CHARSET);
     }
 
+    /**
+     * Builds the query with some parameters replaced, or removed where the override is null, leaving this query
+     * unchanged.
+     */
+    String buildQuery(Map<String, String> overrides) throws IOException {
+        Map<String, String> params = createParams();
+        for (Map.Entry<String, String> override : overrides.entrySet()) {
+            if (override.getValue() == null) {
+                params.remove(override.getKey());
+            } else {
+                params.put(override.getKey(), override.getValue());
+            }
+        }
+        return createViewPath() + "?" + RestUtils.toQuery(params, RestConnection.DEFAULT_CHARSET);
+    }
+
     private Map<String, String> createParams() {
         HashMap<String, String> params = new HashMap<String, String>();
         if (mKey != null) {
@@ -1,19 +1,21 @@
 package ca.barelabs.barecouch;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import ca.barelabs.bareconnection.GsonParser;
 import ca.barelabs.bareconnection.ObjectParser;
-import ca.barelabs.bareconnection.IOUtils;
-import ca.barelabs.bareconnection.RestResponse;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
 import com.google.gson.stream.JsonReader;
 
 
@@ -32,10 +34,56 @@ public class ViewResult implements Iterable<ViewResult.Row> {
     private List<Row> mRows = new ArrayList<Row>();
     
 
-    public ViewResult(ViewQuery query, RestResponse response) throws IOException {
+    public ViewResult(ViewQuery query, TransportResponse response) throws IOException {
     	mQuery = query;
         mParser = response.getParser();
-        parseMetadata(response.parse());
+        try {
+            parseMetadata(new JsonReader(new InputStreamReader(response.getContent(), response.getIncomingCharset())));
+        } finally {
+            // Closing the response rather than the reader lets the connection be reused
+            response.close();
+        }
+    }
+    
+    /**
+     * A result assembled from rows that were already parsed, such as the chunks of a large keys query.
+     */
+    ViewResult(ViewQuery query, ObjectParser parser, List<Row> rows, long offset, long totalRows, String updateSeq) {
+        mQuery = query;
+        mParser = parser;
+        mRows = rows;
+        mOffset = offset;
+        mTotalRows = totalRows;
+        mUpdateSeq = updateSeq;
+    }
+    
+    /**
+     * A deep copy of this result, so changes to either don't show in the other.
+     */
+    ViewResult copy() {
+        List<Row> rows = new ArrayList<Row>(mRows.size());
+        for (Row row : mRows) {
+            rows.add(new Row(mParser, (JsonObject) copyOf(row.mJsonObject)));
+        }
+        return new ViewResult(mQuery, mParser, rows, mOffset, mTotalRows, mUpdateSeq);
+    }
+
+    private static JsonElement copyOf(JsonElement element) {
+        // Primitives and nulls are immutable, so only containers need copying
+        if (element.isJsonObject()) {
+            JsonObject copy = new JsonObject();
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                copy.add(entry.getKey(), copyOf(entry.getValue()));
+            }
+            return copy;
+        } else if (element.isJsonArray()) {
+            JsonArray copy = new JsonArray();
+            for (JsonElement item : element.getAsJsonArray()) {
+                copy.add(copyOf(item));
+            }
+            return copy;
+        }
+        return element;
     }
     
     public ViewQuery getQuery() {
@@ -84,8 +132,21 @@ public class ViewResult implements Iterable<ViewResult.Row> {
         return list;
     }
     
-    private final void parseMetadata(String result) {
-        JsonReader jsonReader = new JsonReader(new StringReader(result));
+    /**
+     * Like {@link #getList(Class)} but binds each row's tree with the Gson type adapter instead of printing
+     * and parsing it again.
+     */
+    public <D> List<D> getList(Class<D> clss, Gson gson) {
+        TypeAdapter<D> adapter = gson.getAdapter(clss);
+        String field = mQuery.isIncludeDocs() ? Row.FIELD_DOC : Row.FIELD_VALUE;
+        List<D> list = new ArrayList<D>(mRows.size());
+        for (Row row : mRows) {
+            list.add(row.getAsObject(field, adapter));
+        }
+        return list;
+    }
+    
+    private final void parseMetadata(JsonReader jsonReader) {
         JsonParser jsonParser = new JsonParser();
         try {
             jsonReader.beginObject();
@@ -99,9 +160,11 @@ public class ViewResult implements Iterable<ViewResult.Row> {
                     mUpdateSeq = jsonReader.nextString();
                 } else if (name.equals(FIELD_ROWS)) {
                     jsonReader.beginArray();
+                    String projectedField = mQuery.getProjectedField();
                     while(jsonReader.hasNext()) {
-                        JsonElement jsonElement = jsonParser.parse(jsonReader);
-                        mRows.add(new Row(mParser, jsonElement.getAsJsonObject()));
+                        JsonObject jsonObject = projectedField == null ? jsonParser.parse(jsonReader).getAsJsonObject()
+                            : mQuery.getProjection().readRow(jsonReader, projectedField);
+                        mRows.add(new Row(mParser, jsonObject));
                     }
                     jsonReader.endArray();
                 } else {
@@ -113,9 +176,6 @@ public class ViewResult implements Iterable<ViewResult.Row> {
         catch(IOException e) {
             throw new DatabaseAccessException(e);
         }
-        finally {
-            IOUtils.closeQuietly(jsonReader);
-        }
     }
 
     
@@ -206,6 +266,19 @@ public class ViewResult implements Iterable<ViewResult.Row> {
             return mJsonObject.get(field);
         }
         
+        public <T> T getValueAsObject(Class<T> clss, Gson gson) {
+            return getAsObject(FIELD_VALUE, gson.getAdapter(clss));
+        }
+
+        public <T> T getDocAsObject(Class<T> clss, Gson gson) {
+            return getAsObject(FIELD_DOC, gson.getAdapter(clss));
+        }
+
+        <T> T getAsObject(String field, TypeAdapter<T> adapter) {
+            JsonElement element = mJsonObject.get(field);
+            return element == null || element.isJsonNull() ? null : adapter.fromJsonTree(element);
+        }
+        
         private <T> T getAsObject(String field, Class<T> clss) throws IOException {
             JsonElement element = mJsonObject.get(field);
             if (element == null) {